@@ -0,0 +1,32 @@
+package tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import htsjdk.samtools.util.Log;
+
+/*
+ * A temporary directory for the inputs and outputs of one benchmark trial, deleted afterwards.
+ */
+final class BenchmarkFiles {
+	final File dir;
+
+	BenchmarkFiles(String prefix) throws IOException {
+		// the tools log every run; only errors are of interest here
+		Log.setGlobalLogLevel(Log.LogLevel.ERROR);
+		dir = Files.createTempDirectory(prefix).toFile();
+	}
+
+	File file(String name) {
+		return new File(dir, name);
+	}
+
+	void delete() throws IOException {
+		try (Stream<java.nio.file.Path> paths = Files.walk(dir.toPath())) {
+			paths.sorted(Comparator.reverseOrder()).map(java.nio.file.Path::toFile).forEach(File::delete);
+		}
+	}
+}
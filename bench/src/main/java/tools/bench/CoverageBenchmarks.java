@@ -0,0 +1,108 @@
+package tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import tools.CalculateTargetRegionCoverage;
+import tools.DepthAccumulator;
+import tools.ReadFilter;
+
+/*
+ * CalculateTargetRegionCoverage: the read filter and the per base depth of a target on reads held
+ * in memory, and whole runs in the query and sweep modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CoverageBenchmarks {
+	private static final int CONTIGS = 2;
+	private static final int CONTIG_LENGTH = 2000000;
+
+	@Param({ "30" })
+	public int depth;
+	@Param({ "0.1" })
+	public double duplicateRate;
+	@Param({ "2000" })
+	public int targetCount;
+	@Param({ "0.2" })
+	public double overlap;
+
+	private BenchmarkFiles files;
+	private File bamFile;
+	private File bedFile;
+	private final ReadFilter filter = new ReadFilter();
+	// the reads of the first 100 kb of chr1
+	private final List<SAMRecord> reads = new ArrayList<SAMRecord>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		files = new BenchmarkFiles("coverage");
+		bamFile = files.file("reads.bam");
+		bedFile = files.file("targets.bed");
+		SyntheticData.writeBam(bamFile, CONTIGS, CONTIG_LENGTH, depth, 100, duplicateRate, 1);
+		SyntheticData.writeBed(bedFile, CONTIGS, CONTIG_LENGTH, targetCount, 200, overlap, 2);
+		try (SamReader reader = SamReaderFactory.makeDefault().open(bamFile)) {
+			SAMRecordIterator iterator = reader.query("chr1", 1, 100000, false);
+			while (iterator.hasNext()) {
+				reads.add(iterator.next());
+			}
+			iterator.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		files.delete();
+	}
+
+	@Benchmark
+	public void filterRead(Blackhole blackhole) {
+		for (SAMRecord read : reads) {
+			blackhole.consume(filter.reject(read));
+		}
+	}
+
+	@Benchmark
+	public int[] perBaseCoverage() {
+		final DepthAccumulator accumulator = new DepthAccumulator(1, 100000);
+		for (SAMRecord read : reads) {
+			filter.addToDepth(read, accumulator);
+		}
+		return accumulator.resolve();
+	}
+
+	@Benchmark
+	public void queryTargets() throws IOException {
+		CalculateTargetRegionCoverage.main(new String[] { bedFile.getPath(), bamFile.getPath(), files.file("query.tsv").getPath() });
+	}
+
+	@Benchmark
+	public void sweepTargets() throws IOException {
+		CalculateTargetRegionCoverage.main(new String[] { "--sweep", bedFile.getPath(), bamFile.getPath(), files.file("sweep.tsv").getPath() });
+	}
+}
@@ -0,0 +1,27 @@
+package tools.bench;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Runs JMH with the given options, and unless a result format is given, writes the results as
+ * JSON to results/benchmarks-<time>.json so that runs can be compared over time.
+ */
+public class RunBenchmarks {
+	public static void main(String[] args) throws Exception {
+		final List<String> options = new ArrayList<String>(Arrays.asList(args));
+		if (!options.contains("-rf") && !options.contains("-h") && !options.contains("-l")) {
+			final File results = new File("results");
+			results.mkdirs();
+			options.add("-rf");
+			options.add("json");
+			options.add("-rff");
+			options.add(new File(results, "benchmarks-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json").getPath());
+		}
+		org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+	}
+}
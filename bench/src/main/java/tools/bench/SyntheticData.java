@@ -0,0 +1,185 @@
+package tools.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/*
+ * Deterministic synthetic inputs for the benchmarks: the same arguments and seed always give the
+ * same file. Every file has contigs named chr1, chr2, ... of the given length.
+ */
+public final class SyntheticData {
+	private static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+	private SyntheticData() {
+	}
+
+	/**
+	 * A coordinate sorted, indexed BAM of single end reads with uniformly random starts.
+	 * @param depth the mean depth over the contigs
+	 * @param duplicateRate the fraction of reads flagged as duplicates
+	 */
+	public static void writeBam(File bamFile, int contigs, int contigLength, int depth, int readLength, double duplicateRate, long seed) {
+		final Random random = new Random(seed);
+		final SAMFileHeader header = new SAMFileHeader();
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		header.setSequenceDictionary(dictionary(contigs, contigLength));
+		final SAMReadGroupRecord readGroup = new SAMReadGroupRecord("rg1");
+		readGroup.setSample("sample1");
+		header.addReadGroup(readGroup);
+
+		final byte[] bases = new byte[readLength];
+		final byte[] qualities = new byte[readLength];
+		final int readsPerContig = (int) ((long) depth * contigLength / readLength);
+		try (SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bamFile)) {
+			long name = 0;
+			for (int c = 0; c < contigs; c++) {
+				final int[] starts = new int[readsPerContig];
+				for (int i = 0; i < starts.length; i++) {
+					starts[i] = 1 + random.nextInt(contigLength - readLength + 1);
+				}
+				Arrays.sort(starts);
+				for (int start : starts) {
+					final SAMRecord read = new SAMRecord(header);
+					read.setReadName("r" + name++);
+					read.setReferenceIndex(c);
+					read.setAlignmentStart(start);
+					read.setCigarString(readLength + "M");
+					read.setMappingQuality(random.nextInt(10) == 0 ? 0 : 60);
+					int flags = random.nextBoolean() ? SAMFlag.READ_REVERSE_STRAND.intValue() : 0;
+					if (random.nextDouble() < duplicateRate) {
+						flags |= SAMFlag.DUPLICATE_READ.intValue();
+					}
+					read.setFlags(flags);
+					for (int i = 0; i < readLength; i++) {
+						bases[i] = (byte) BASES[random.nextInt(4)];
+						qualities[i] = (byte) (10 + random.nextInt(30));
+					}
+					read.setReadBases(bases.clone());
+					read.setBaseQualities(qualities.clone());
+					read.setAttribute("RG", "rg1");
+					writer.addAlignment(read);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A BED file of targets in coordinate order, spread evenly over the contigs.
+	 * @param overlap the fraction of targets that start inside the previous target
+	 */
+	public static void writeBed(File bedFile, int contigs, int contigLength, int targetCount, int targetLength, double overlap, long seed) throws IOException {
+		final Random random = new Random(seed);
+		final int perContig = Math.max(1, targetCount / contigs);
+		final int spacing = Math.max(1, (contigLength - targetLength) / perContig);
+		try (Writer out = new BufferedWriter(new FileWriter(bedFile), 1 << 20)) {
+			int written = 0;
+			for (int c = 0; c < contigs && written < targetCount; c++) {
+				int previousStart = -1;
+				for (int t = 0; t < perContig && written < targetCount; t++, written++) {
+					int start = t * spacing + random.nextInt(Math.max(1, spacing - targetLength));
+					if (previousStart >= 0 && random.nextDouble() < overlap) {
+						start = previousStart + random.nextInt(targetLength);
+					}
+					start = Math.max(start, Math.max(previousStart, 0));
+					final int length = targetLength / 2 + random.nextInt(targetLength);
+					final int end = Math.min(contigLength, start + length);
+					out.write("chr" + (c + 1) + "\t" + start + "\t" + end + "\ttarget" + written + "\n");
+					previousStart = start;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A sorted VCF of biallelic SNVs with Integer INFO fields I0.. and, besides GT:DP:GQ:AD:PL,
+	 * Integer FORMAT fields F0.. for every sample. With no samples the FORMAT column is left out,
+	 * as in a sites only VCF such as dbSNP.
+	 */
+	public static void writeVcf(File vcfFile, int contigs, int contigLength, int records, int samples, int infoFields, int formatFields, long seed) throws IOException {
+		final Random random = new Random(seed);
+		try (Writer out = new BufferedWriter(new FileWriter(vcfFile), 1 << 20)) {
+			out.write("##fileformat=VCFv4.2\n");
+			out.write("##INFO=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">\n");
+			for (int i = 0; i < infoFields; i++) {
+				out.write("##INFO=<ID=I" + i + ",Number=1,Type=Integer,Description=\"Synthetic\">\n");
+			}
+			out.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">\n");
+			out.write("##FORMAT=<ID=DP,Number=1,Type=Integer,Description=\"Depth\">\n");
+			out.write("##FORMAT=<ID=GQ,Number=1,Type=Integer,Description=\"Genotype quality\">\n");
+			out.write("##FORMAT=<ID=AD,Number=R,Type=Integer,Description=\"Allelic depths\">\n");
+			out.write("##FORMAT=<ID=PL,Number=G,Type=Integer,Description=\"Phred likelihoods\">\n");
+			for (int i = 0; i < formatFields; i++) {
+				out.write("##FORMAT=<ID=F" + i + ",Number=1,Type=Integer,Description=\"Synthetic\">\n");
+			}
+			final SAMSequenceDictionary dictionary = dictionary(contigs, contigLength);
+			for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+				out.write("##contig=<ID=" + sequence.getSequenceName() + ",length=" + sequence.getSequenceLength() + ">\n");
+			}
+			out.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+			if (samples > 0) {
+				out.write("\tFORMAT");
+			}
+			for (int s = 0; s < samples; s++) {
+				out.write("\tS" + s);
+			}
+			out.write('\n');
+
+			final StringBuilder format = new StringBuilder("GT:DP:GQ:AD:PL");
+			for (int i = 0; i < formatFields; i++) {
+				format.append(":F").append(i);
+			}
+			final int perContig = Math.max(1, records / contigs);
+			final int spacing = Math.max(1, contigLength / perContig);
+			final StringBuilder line = new StringBuilder();
+			for (int c = 0; c < contigs; c++) {
+				for (int r = 0; r < perContig; r++) {
+					final int ref = random.nextInt(4);
+					final int alt = (ref + 1 + random.nextInt(3)) % 4;
+					line.setLength(0);
+					line.append("chr").append(c + 1).append('\t').append(1 + r * spacing + random.nextInt(spacing)).append("\t.\t")
+							.append(BASES[ref]).append('\t').append(BASES[alt]).append('\t').append(random.nextInt(10000) / 10.0).append("\tPASS\tDP=").append(random.nextInt(1000));
+					for (int i = 0; i < infoFields; i++) {
+						line.append(";I").append(i).append('=').append(random.nextInt(100));
+					}
+					if (samples > 0) {
+						line.append('\t').append(format);
+					}
+					for (int s = 0; s < samples; s++) {
+						final int refDepth = random.nextInt(50);
+						final int altDepth = random.nextInt(50);
+						line.append('\t').append(random.nextInt(3) == 0 ? "0/0" : random.nextBoolean() ? "0/1" : "1/1")
+								.append(':').append(refDepth + altDepth).append(':').append(random.nextInt(100))
+								.append(':').append(refDepth).append(',').append(altDepth)
+								.append(":0,").append(random.nextInt(100)).append(',').append(random.nextInt(1000));
+						for (int i = 0; i < formatFields; i++) {
+							line.append(':').append(random.nextInt(100));
+						}
+					}
+					out.append(line).append('\n');
+				}
+			}
+		}
+	}
+
+	private static SAMSequenceDictionary dictionary(int contigs, int contigLength) {
+		final SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+		for (int c = 0; c < contigs; c++) {
+			dictionary.addSequence(new SAMSequenceRecord("chr" + (c + 1), contigLength));
+		}
+		return dictionary;
+	}
+}
@@ -0,0 +1,113 @@
+package tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import tools.IndexManager;
+import tools.SelectVariants;
+import tools.SubtractVariants;
+import tools.VariantMatcher;
+
+/*
+ * SubtractVariants and SelectVariants: the per record query of the known variants for variants
+ * held in memory, and whole runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VariantBenchmarks {
+	private static final int CONTIGS = 2;
+	private static final int CONTIG_LENGTH = 10000000;
+
+	@Param({ "20000" })
+	public int records;
+	@Param({ "200000" })
+	public int knownRecords;
+	@Param({ "2000" })
+	public int targetCount;
+
+	private BenchmarkFiles files;
+	private File vcfFile;
+	private File knownFile;
+	private File bedFile;
+	private final List<VariantContext> variants = new ArrayList<VariantContext>();
+	private AbstractFeatureReader<VariantContext, LineIterator> knownReader;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		files = new BenchmarkFiles("variants");
+		vcfFile = files.file("calls.vcf");
+		knownFile = files.file("known.vcf");
+		bedFile = files.file("targets.bed");
+		SyntheticData.writeVcf(vcfFile, CONTIGS, CONTIG_LENGTH, records, 1, 2, 0, 3);
+		SyntheticData.writeVcf(knownFile, CONTIGS, CONTIG_LENGTH, knownRecords, 0, 2, 0, 4);
+		SyntheticData.writeBed(bedFile, CONTIGS, CONTIG_LENGTH, targetCount, 200, 0, 5);
+		try (AbstractFeatureReader<VariantContext, LineIterator> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getPath(), new VCFCodec(), false);
+				CloseableTribbleIterator<VariantContext> iterator = reader.iterator()) {
+			while (iterator.hasNext()) {
+				variants.add(iterator.next());
+			}
+		}
+		knownReader = IndexManager.getInstance().openIndexed(knownFile, new VCFCodec());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		knownReader.close();
+		files.delete();
+	}
+
+	@Benchmark
+	public void perRecordQuery(Blackhole blackhole) throws IOException {
+		final VariantMatcher matcher = new VariantMatcher(VariantMatcher.Mode.OVERLAP, knownReader);
+		for (VariantContext vc : variants) {
+			blackhole.consume(matcher.isKnown(vc));
+		}
+	}
+
+	@Benchmark
+	public void subtractIndexed() throws IOException {
+		SubtractVariants.main(new String[] { vcfFile.getPath(), knownFile.getPath(), files.file("indexed.vcf").getPath() });
+	}
+
+	@Benchmark
+	public void subtractSorted() throws IOException {
+		SubtractVariants.main(new String[] { "--sorted", vcfFile.getPath(), knownFile.getPath(), files.file("sorted.vcf").getPath() });
+	}
+
+	@Benchmark
+	public void select() throws IOException {
+		SelectVariants.main(new String[] { vcfFile.getPath(), bedFile.getPath(), files.file("selected.vcf").getPath() });
+	}
+
+	@Benchmark
+	public void selectRaw() throws IOException {
+		SelectVariants.main(new String[] { "--raw", vcfFile.getPath(), bedFile.getPath(), files.file("raw.vcf").getPath() });
+	}
+}
@@ -0,0 +1,104 @@
+package tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import tools.TabRowWriter;
+import tools.VCFToTab;
+
+/*
+ * VCFToTab: the formatting of rows for records held in memory, and whole runs on one and on
+ * several threads, for VCFs of different widths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class VcfToTabBenchmarks {
+	@Param({ "10", "100" })
+	public int samples;
+	@Param({ "10" })
+	public int infoFields;
+	@Param({ "2" })
+	public int formatFields;
+	@Param({ "10000" })
+	public int records;
+
+	private BenchmarkFiles files;
+	private File vcfFile;
+	private final List<VariantContext> variants = new ArrayList<VariantContext>();
+	private TabRowWriter writer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		files = new BenchmarkFiles("vcftotab");
+		vcfFile = files.file("wide.vcf");
+		SyntheticData.writeVcf(vcfFile, 1, 10000000, records, samples, infoFields, formatFields, 6);
+		try (AbstractFeatureReader<VariantContext, LineIterator> reader = AbstractFeatureReader.getFeatureReader(vcfFile.getPath(), new VCFCodec(), false);
+				CloseableTribbleIterator<VariantContext> iterator = reader.iterator()) {
+			final VCFHeader header = (VCFHeader) reader.getHeader();
+			final List<String> infoKeys = new ArrayList<String>();
+			header.getInfoHeaderLines().forEach(line -> infoKeys.add(line.getID()));
+			final List<String> formatKeys = new ArrayList<String>();
+			header.getFormatHeaderLines().forEach(line -> formatKeys.add(line.getID()));
+			writer = new TabRowWriter(infoKeys, formatKeys, header.getGenotypeSamples());
+			while (iterator.hasNext()) {
+				variants.add(iterator.next());
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		files.delete();
+	}
+
+	@Benchmark
+	public byte[] formatRows() throws IOException {
+		for (VariantContext vc : variants) {
+			writer.writeRow(vc);
+		}
+		return writer.takeRows();
+	}
+
+	@Benchmark
+	public void convert() throws IOException {
+		VCFToTab.main(new String[] { vcfFile.getPath(), files.file("single.tsv").getPath() });
+	}
+
+	@Benchmark
+	public void convertPipelined() throws IOException {
+		VCFToTab.main(new String[] { "--threads", "4", vcfFile.getPath(), files.file("pipelined.tsv").getPath() });
+	}
+
+	@Benchmark
+	public void convertBgzf() throws IOException {
+		VCFToTab.main(new String[] { "--threads", "4", vcfFile.getPath(), files.file("pipelined.tsv.gz").getPath() });
+	}
+
+}
@@ -0,0 +1,410 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import htsjdk.samtools.util.Log;
+
+/*
+ * This program runs the rows of a manifest, each of them a run of a tool, inside one JVM, so that
+ * a flowcell's samples share one warm JVM and its caches instead of starting one JVM per sample.
+ * Input: a manifest of tab separated rows: tool, inputs, outputs and options. The tool is one of
+ *   the names of ToolServer; inputs and outputs are comma separated files, and options are space
+ *   separated. A row runs the tool with its options, then its inputs, then its outputs. Empty lines,
+ *   lines starting with # and a header line starting with "tool" are skipped.
+ * Output: a report with a line per row: line, tool, state, seconds waited for a disk, seconds run,
+ *   records, records/s, seconds of io wait and the message of a failure, then a line of totals.
+ *
+ * The rows are dealt to the workers in turn, and a worker takes its own rows from the front of its
+ * queue and, once it has none left that it may run, steals from the back of the others'. A row may
+ * run only while every disk that its inputs are on has fewer than --readers-per-disk rows reading
+ * it, so that the rows of one slow disk do not take every worker. A disk is a file store of the
+ * file system.
+ *
+ * Every output of a row that succeeds is recorded in a journal, with its size and CRC32 and the
+ * command that wrote it. A row whose outputs are all in the journal, written by the same command
+ * and still of the same size and checksum, is skipped, so a batch that stopped is run again to
+ * finish it. Rows without outputs always run.
+ */
+public class BatchRunner extends CommandLineTool {
+	private static String version = "16.12.29";
+	private static final Log log = Log.getInstance(BatchRunner.class);
+	private static final ThreadLocal<Row> currentRow = new ThreadLocal<Row>();
+
+	private enum State {
+		QUEUED, RUNNING, DONE, SKIPPED, FAILED
+	}
+
+	private static class Row {
+		final int line;
+		final String tool;
+		final String[] args;
+		final List<String> outputs;
+		final Set<String> disks;
+		State state = State.QUEUED;
+		volatile ToolMetrics metrics;
+		String message = "";
+		double waitSeconds = 0;
+		double seconds = 0;
+		long records = 0;
+		double ioWaitSeconds = 0;
+
+		Row(int line, String tool, String[] args, List<String> outputs, Set<String> disks) {
+			this.line = line;
+			this.tool = tool;
+			this.args = args;
+			this.outputs = outputs;
+			this.disks = disks;
+		}
+
+		String command() {
+			return tool + '\t' + String.join("\t", args);
+		}
+
+		String report() {
+			return String.format("%d\t%s\t%s\t%.3f\t%.3f\t%d\t%.0f\t%.3f\t%s", line, tool, state, waitSeconds, seconds, records,
+					seconds > 0 ? records / seconds : 0.0, ioWaitSeconds, message);
+		}
+	}
+
+	private static class Output {
+		final String command;
+		final long size;
+		final long checksum;
+
+		Output(String command, long size, long checksum) {
+			this.command = command;
+			this.size = size;
+			this.checksum = checksum;
+		}
+	}
+
+	private final List<Deque<Row>> queues = new ArrayList<Deque<Row>>();
+	private final Map<String, Integer> readers = new HashMap<String, Integer>();
+	private final int readersPerDisk;
+	private final Map<String, Output> journaled;
+	private final PrintWriter journal;
+
+	private BatchRunner(List<Row> rows, int threads, int readersPerDisk, File journalFile) throws IOException {
+		this.readersPerDisk = readersPerDisk;
+		for (int i = 0; i < threads; i++) {
+			queues.add(new ArrayDeque<Row>());
+		}
+		for (int i = 0; i < rows.size(); i++) {
+			queues.get(i % threads).add(rows.get(i));
+		}
+		journaled = readJournal(journalFile);
+		journal = new PrintWriter(new FileWriter(journalFile, true));
+	}
+
+	public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options);
+        if (positional.size() != 2) {
+            System.out.println("Usage: " + BatchRunner.class.getCanonicalName() + " [--threads N] [--readers-per-disk N] [--journal file] [--cache-size N] [--index-cache N] manifest report");
+            exitWithUsage();
+        }
+        final File manifestFile = new File(positional.get(0));
+        final File reportFile = new File(positional.get(1));
+        final int threads = Math.max(1, Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        final int readersPerDisk = Math.max(1, Integer.parseInt(options.getOrDefault("--readers-per-disk", "2")));
+        final File journalFile = new File(options.getOrDefault("--journal", manifestFile.getPath() + ".journal"));
+
+        log.info("Start with args:" + Arrays.toString(args));
+        printConfigurationInfo(version);
+
+        SharedReaders.getInstance().setCapacity(Integer.parseInt(options.getOrDefault("--cache-size", "16")));
+        IndexManager.getInstance().setCapacity(Integer.parseInt(options.getOrDefault("--index-cache", "64")));
+        final long start = System.nanoTime();
+        final List<Row> rows = readManifest(manifestFile);
+        log.info("Running " + rows.size() + " rows on " + threads + " threads, " + readersPerDisk + " readers per disk");
+        final BatchRunner runner = new BatchRunner(rows, threads, readersPerDisk, journalFile);
+        try {
+        	runner.run();
+        } finally {
+        	runner.journal.close();
+        }
+
+        final Map<State, Integer> states = new HashMap<State, Integer>();
+        try (PrintWriter report = new PrintWriter(reportFile, "UTF-8")) {
+        	report.println("#line\ttool\tstate\twait_seconds\tseconds\trecords\trecords_per_second\tio_wait_seconds\tmessage");
+        	for (Row row : rows) {
+        		report.println(row.report());
+        		states.merge(row.state, 1, Integer::sum);
+        	}
+        	report.println(String.format("#total\t%d rows\t%d done, %d skipped, %d failed\t\t%.3f",
+        			rows.size(), states.getOrDefault(State.DONE, 0), states.getOrDefault(State.SKIPPED, 0), states.getOrDefault(State.FAILED, 0),
+        			(System.nanoTime() - start) / 1e9));
+        }
+        log.info(String.format("Done. %d rows done, %d skipped, %d failed. Elapsed time %.3f seconds", states.getOrDefault(State.DONE, 0),
+        		states.getOrDefault(State.SKIPPED, 0), states.getOrDefault(State.FAILED, 0), (System.nanoTime() - start) / 1e9));
+        if (states.containsKey(State.FAILED)) {
+        	System.exit(1);
+        }
+	}
+
+	/**
+	 * @return whether this thread runs a row of a batch
+	 */
+	static boolean isRow() {
+		return currentRow.get() != null;
+	}
+
+	/**
+	 * Called by a tool as it starts, so that the timings of its row can be reported.
+	 */
+	static void started(ToolMetrics metrics) {
+		final Row row = currentRow.get();
+		if (row != null) {
+			row.metrics = metrics;
+		}
+	}
+
+	private static List<Row> readManifest(File manifestFile) throws IOException {
+		final List<Row> rows = new ArrayList<Row>();
+		try (BufferedReader in = Files.newBufferedReader(manifestFile.toPath())) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#") || line.startsWith("tool\t")) {
+					continue;
+				}
+				final String[] fields = line.split("\t", -1);
+				if (fields.length < 3 || fields.length > 4) {
+					throw new IllegalArgumentException(manifestFile + " line " + lineNumber + ": expected tool, inputs, outputs and options");
+				}
+				if (!ToolServer.TOOLS.containsKey(fields[0])) {
+					throw new IllegalArgumentException(manifestFile + " line " + lineNumber + ": unknown tool " + fields[0] + "; expected one of " + ToolServer.TOOLS.keySet());
+				}
+				final List<String> inputs = split(fields[1], ",");
+				final List<String> outputs = split(fields[2], ",");
+				final List<String> args = new ArrayList<String>(fields.length > 3 ? split(fields[3], " ") : new ArrayList<String>());
+				args.addAll(inputs);
+				args.addAll(outputs);
+				final Set<String> disks = new LinkedHashSet<String>();
+				for (String input : inputs) {
+					disks.add(disk(new File(input)));
+				}
+				rows.add(new Row(lineNumber, fields[0], args.toArray(new String[args.size()]), outputs, disks));
+			}
+		}
+		return rows;
+	}
+
+	private static List<String> split(String field, String separator) {
+		final List<String> values = new ArrayList<String>();
+		for (String value : field.split(separator)) {
+			if (!value.trim().isEmpty()) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+
+	/* The file store that a file is on, or that the nearest of its directories that exists is on.
+	 */
+	private static String disk(File file) {
+		for (Path path = file.getAbsoluteFile().toPath(); path != null; path = path.getParent()) {
+			if (Files.exists(path)) {
+				try {
+					return Files.getFileStore(path).toString();
+				} catch (IOException e) {
+					break;
+				}
+			}
+		}
+		return "unknown";
+	}
+
+	private void run() {
+		final List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < queues.size(); i++) {
+			final int worker = i;
+			final Thread thread = new Thread(() -> work(worker), "batch-" + (i + 1));
+			workers.add(thread);
+			thread.start();
+		}
+		for (Thread thread : workers) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while running the batch", e);
+			}
+		}
+	}
+
+	private void work(int worker) {
+		Row row;
+		while ((row = take(worker)) != null) {
+			try {
+				runRow(row);
+			} finally {
+				release(row);
+			}
+		}
+	}
+
+	/* The next row that this worker may run, waiting while every row left is on a busy disk, or null
+	 * when no rows are left.
+	 */
+	private synchronized Row take(int worker) {
+		final long start = System.nanoTime();
+		while (true) {
+			Row row = take(queues.get(worker).iterator());
+			for (int i = 1; row == null && i < queues.size(); i++) {
+				row = take(queues.get((worker + i) % queues.size()).descendingIterator());
+			}
+			if (row != null) {
+				for (String disk : row.disks) {
+					readers.merge(disk, 1, Integer::sum);
+				}
+				row.waitSeconds = (System.nanoTime() - start) / 1e9;
+				return row;
+			}
+			if (queues.stream().allMatch(Deque::isEmpty)) {
+				return null;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+	}
+
+	private Row take(Iterator<Row> queue) {
+		while (queue.hasNext()) {
+			final Row row = queue.next();
+			if (row.disks.stream().allMatch(disk -> readers.getOrDefault(disk, 0) < readersPerDisk)) {
+				queue.remove();
+				return row;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void release(Row row) {
+		for (String disk : row.disks) {
+			readers.merge(disk, -1, Integer::sum);
+		}
+		notifyAll();
+	}
+
+	private void runRow(Row row) {
+		currentRow.set(row);
+		row.state = State.RUNNING;
+		final long start = System.nanoTime();
+		try {
+			if (isComplete(row)) {
+				row.state = State.SKIPPED;
+				log.info("Skipped line " + row.line + ": its outputs are complete");
+				return;
+			}
+			log.info("Running line " + row.line + ": " + row.tool + " " + Arrays.toString(row.args));
+			ToolServer.TOOLS.get(row.tool).main(row.args);
+			for (String output : row.outputs) {
+				final File file = new File(output);
+				if (file.isFile()) {
+					record(file, new Output(row.command(), file.length(), checksum(file)));
+				}
+			}
+			row.state = State.DONE;
+		} catch (Exception | Error e) {
+			log.error(e, "Line " + row.line + " failed");
+			row.message = String.valueOf(e.getMessage()).replace('\t', ' ').replace('\n', ' ');
+			row.state = State.FAILED;
+		} finally {
+			final ToolMetrics metrics = row.metrics;
+			row.seconds = metrics != null ? metrics.getElapsedSeconds() : (System.nanoTime() - start) / 1e9;
+			row.records = metrics != null ? metrics.getCount(ToolMetrics.RECORDS) : 0;
+			row.ioWaitSeconds = metrics != null ? metrics.getStageSeconds(ToolMetrics.IO_WAIT) : 0;
+			currentRow.remove();
+		}
+	}
+
+	/* Whether every output of a row was written by the same command and is unchanged since.
+	 */
+	private boolean isComplete(Row row) throws IOException {
+		if (row.outputs.isEmpty()) {
+			return false;
+		}
+		for (String output : row.outputs) {
+			final File file = new File(output);
+			final Output recorded;
+			synchronized (journaled) {
+				recorded = journaled.get(file.getAbsolutePath());
+			}
+			if (recorded == null || !recorded.command.equals(row.command()) || !file.isFile() || file.length() != recorded.size
+					|| checksum(file) != recorded.checksum) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* The journal: a line per output, with its size, its checksum and the command that wrote it.
+	 * A later line for an output replaces an earlier one.
+	 */
+	private static Map<String, Output> readJournal(File journalFile) throws IOException {
+		final Map<String, Output> outputs = new HashMap<String, Output>();
+		if (!journalFile.exists()) {
+			return outputs;
+		}
+		try (BufferedReader in = Files.newBufferedReader(journalFile.toPath())) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] fields = line.split("\t", 4);
+				// a line cut short by a run that was killed is ignored
+				if (fields.length == 4) {
+					try {
+						outputs.put(fields[0], new Output(fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			}
+		}
+		return outputs;
+	}
+
+	private void record(File file, Output output) {
+		synchronized (journaled) {
+			journaled.put(file.getAbsolutePath(), output);
+			journal.println(file.getAbsolutePath() + '\t' + output.size + '\t' + output.checksum + '\t' + output.command);
+			journal.flush();
+		}
+	}
+
+	private static long checksum(File file) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[1 << 20];
+		try (InputStream in = new FileInputStream(file)) {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		}
+		return crc.getValue();
+	}
+}
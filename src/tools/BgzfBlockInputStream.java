@@ -0,0 +1,198 @@
+package tools;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * The uncompressed bytes of a BGZF file, inflated on a pool of threads ahead of the reader.
+ * A thread cuts the compressed stream into its blocks, each block is inflated on the pool, and
+ * the blocks are read back in file order. At most readAhead blocks are inflated ahead of the
+ * reader, so the memory is fixed whatever the size of the file, and at most threads of them are
+ * inflating at once. The pools may be shared by many streams.
+ */
+public class BgzfBlockInputStream extends InputStream {
+	private static final int HEADER_LENGTH = 18;
+	private static final int FOOTER_LENGTH = 8;
+	/* one per pool thread whatever the number of streams, as the threads outlive the streams */
+	private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+	private final InputStream in;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Future<byte[]> endOfFile = CompletableFuture.completedFuture(null);
+	private final Future<?> cutting;
+	private final ToolMetrics metrics;
+	private byte[] block = new byte[0];
+	private int position = 0;
+	private boolean done = false;
+
+	/**
+	 * @param in the compressed stream, read from its current position
+	 * @param inflaters the pool that inflates the blocks
+	 * @param cutter the pool of the thread that cuts the blocks; it waits while the blocks ahead are full
+	 * @param threads the blocks of this stream inflated at once
+	 * @param metrics the run whose io wait the waits for a block count towards
+	 */
+	public BgzfBlockInputStream(InputStream in, ExecutorService inflaters, ExecutorService cutter, int threads, int readAhead, ToolMetrics metrics) {
+		this.in = in;
+		this.metrics = metrics;
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(readAhead);
+		final Semaphore inflating = new Semaphore(threads);
+		this.cutting = cutter.submit(() -> {
+			try {
+				for (byte[] compressed = readBlock(); compressed != null; compressed = readBlock()) {
+					final byte[] next = compressed;
+					inflating.acquire();
+					blocks.put(inflaters.submit(() -> {
+						try {
+							return inflate(next);
+						} finally {
+							inflating.release();
+						}
+					}));
+				}
+			} catch (IOException e) {
+				final CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+				failed.completeExceptionally(e);
+				blocks.put(failed);
+			} finally {
+				blocks.put(endOfFile);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * @return whether the file starts with a BGZF block header
+	 */
+	public static boolean isBgzf(File file) throws IOException {
+		final byte[] header = new byte[HEADER_LENGTH];
+		try (InputStream in = new FileInputStream(file)) {
+			int length = 0;
+			for (int n; length < header.length && (n = in.read(header, length, header.length - length)) > 0; ) {
+				length += n;
+			}
+			return length == header.length && (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8
+					&& (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C';
+		}
+	}
+
+	/* One compressed block, header and footer included, or null at the end of the file.
+	 */
+	private byte[] readBlock() throws IOException {
+		final byte[] header = new byte[HEADER_LENGTH];
+		final int length = readFully(header, 0, header.length);
+		if (length == 0) {
+			return null;
+		}
+		if (length < header.length || header[12] != 'B' || header[13] != 'C') {
+			throw new IOException("Not a BGZF block header");
+		}
+		final int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+		final byte[] compressed = new byte[blockSize];
+		System.arraycopy(header, 0, compressed, 0, header.length);
+		if (readFully(compressed, header.length, blockSize - header.length) < blockSize - header.length) {
+			throw new EOFException("Truncated BGZF block");
+		}
+		return compressed;
+	}
+
+	private int readFully(byte[] buffer, int offset, int length) throws IOException {
+		int total = 0;
+		for (int n; total < length && (n = in.read(buffer, offset + total, length - total)) > 0; ) {
+			total += n;
+		}
+		return total;
+	}
+
+	private byte[] inflate(byte[] compressed) throws IOException {
+		final int footer = compressed.length - FOOTER_LENGTH;
+		final int size = (compressed[footer + 4] & 0xff) | (compressed[footer + 5] & 0xff) << 8
+				| (compressed[footer + 6] & 0xff) << 16 | (compressed[footer + 7] & 0xff) << 24;
+		final byte[] uncompressed = new byte[size];
+		final Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed, HEADER_LENGTH, footer - HEADER_LENGTH);
+		try {
+			if (inflater.inflate(uncompressed) != size) {
+				throw new IOException("BGZF block inflated to the wrong size");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt BGZF block", e);
+		}
+		return uncompressed;
+	}
+
+	/* Move to the next block that is not empty; false at the end of the file.
+	 */
+	private boolean nextBlock() throws IOException {
+		while (!done && position == block.length) {
+			try {
+				Future<byte[]> next = blocks.poll();
+				if (next == null || !next.isDone()) {
+					final long start = System.nanoTime();
+					if (next == null) {
+						next = blocks.take();
+					}
+					next.get();
+					ReadAhead.stalled(metrics, start);
+				}
+				if (next == endOfFile) {
+					done = true;
+				} else {
+					block = next.get();
+					position = 0;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while inflating", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		return position < block.length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return nextBlock() ? block[position++] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!nextBlock()) {
+			return -1;
+		}
+		final int n = Math.min(length, block.length - position);
+		System.arraycopy(block, position, buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		cutting.cancel(true);
+		// the blocks that are not inflated yet need not be
+		for (Future<byte[]> next; (next = blocks.poll()) != null; ) {
+			next.cancel(false);
+		}
+		in.close();
+	}
+}
@@ -0,0 +1,137 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * The table as BGZF, so that it can be indexed with tabix. The text is cut into blocks that are
+ * deflated on a pool of threads while the rows are still being formatted, and the blocks are
+ * written in order by the thread that writes the rows. A block is at most 64 KB compressed,
+ * and a block that does not shrink is stored instead.
+ */
+public class BgzfTabOutput implements TabOutput {
+	// as in htsjdk, so that a stored block fits in 64 KB with its header and footer
+	private static final int BLOCK_SIZE = 65280;
+	private static final int MAX_COMPRESSED_BLOCK_SIZE = 65536;
+	private static final int HEADER_LENGTH = 18;
+	private static final int FOOTER_LENGTH = 8;
+	// the empty block that ends a BGZF file
+	private static final byte[] EOF_BLOCK = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final PlainTabOutput out;
+	private final ExecutorService compressors;
+	private final int maxPending;
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private final ThreadLocal<Deflater> storer = ThreadLocal.withInitial(() -> new Deflater(Deflater.NO_COMPRESSION, true));
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int position = 0;
+
+	public BgzfTabOutput(File outputFile, int threads) throws IOException {
+		this.out = new PlainTabOutput(outputFile);
+		this.compressors = Executors.newFixedThreadPool(threads, ReadAhead.daemonThreads("bgzf-compressor"));
+		this.maxPending = threads * 4;
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			final int n = Math.min(length, block.length - position);
+			System.arraycopy(bytes, offset, block, position, n);
+			position += n;
+			offset += n;
+			length -= n;
+			if (position == block.length) {
+				submitBlock();
+			}
+		}
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] uncompressed = block;
+		final int size = position;
+		pending.add(compressors.submit(() -> compress(uncompressed, size)));
+		block = new byte[BLOCK_SIZE];
+		position = 0;
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			final byte[] compressed = pending.remove().get();
+			out.write(compressed, 0, compressed.length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private byte[] compress(byte[] uncompressed, int size) {
+		final byte[] compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+		int length = deflate(deflater.get(), uncompressed, size, compressed);
+		if (length < 0) {
+			length = deflate(storer.get(), uncompressed, size, compressed);
+		}
+		final int blockSize = HEADER_LENGTH + length + FOOTER_LENGTH;
+		final byte[] header = { 31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8) };
+		System.arraycopy(header, 0, compressed, 0, HEADER_LENGTH);
+		final CRC32 crc = new CRC32();
+		crc.update(uncompressed, 0, size);
+		putInt(compressed, HEADER_LENGTH + length, (int) crc.getValue());
+		putInt(compressed, HEADER_LENGTH + length + 4, size);
+		return Arrays.copyOf(compressed, blockSize);
+	}
+
+	/* The compressed length, or -1 when the data does not fit in a block.
+	 */
+	private static int deflate(Deflater deflater, byte[] uncompressed, int size, byte[] compressed) {
+		deflater.reset();
+		deflater.setInput(uncompressed, 0, size);
+		deflater.finish();
+		final int capacity = MAX_COMPRESSED_BLOCK_SIZE - HEADER_LENGTH - FOOTER_LENGTH;
+		final int length = deflater.deflate(compressed, HEADER_LENGTH, capacity);
+		return deflater.finished() ? length : -1;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >> 8);
+		bytes[offset + 2] = (byte) (value >> 16);
+		bytes[offset + 3] = (byte) (value >> 24);
+	}
+
+	@Override
+	public void abort() throws IOException {
+		compressors.shutdownNow();
+		out.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (position > 0) {
+				submitBlock();
+			}
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			out.write(EOF_BLOCK, 0, EOF_BLOCK.length);
+		} finally {
+			compressors.shutdownNow();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.Log;
+
+/*
+ * This program calculates the target coverage of a cohort of samples in one run
+ * Input: BED file of target regions, file listing the BAM files (one path, or sample<TAB>path, per line)
+ * Output: per sample coverage files as written by CalculateTargetRegionCoverage and targets x samples
+ *         matrices of read count, mean depth and fraction of bases at or above the depth threshold
+*/
+public class CalculateCohortCoverage extends CommandLineTool {
+	private static String version = "16.12.05";
+	private static final Log log = Log.getInstance(CalculateCohortCoverage.class);
+
+	public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options);
+        if (positional.size() < 3) {
+            System.out.println("Usage: " + CalculateCohortCoverage.class.getCanonicalName() + " [--threads N] [--depth N]"
+            		+ " [--include-flags N] [--exclude-flags N] [--min-mapq N] [--min-base-quality N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] bedFile bamListFile outPrefix");
+            exitWithUsage();
+        }
+        final File bedFile = new File(positional.get(0));
+        final File bamListFile = new File(positional.get(1));
+        final String outPrefix = positional.get(2);
+        final int depth = Integer.parseInt(options.getOrDefault("--depth", "10"));
+        final ReadFilter filter = CalculateTargetRegionCoverage.readFilter(options);
+
+        runTool(CalculateCohortCoverage.class, version, args, options, () -> {
+            // the BED file is parsed once and shared by every worker
+            final TargetSet targets = SharedReaders.getInstance().readTargets(bedFile);
+            log.info("Read " + targets.size() + " BED features from " + bedFile);
+
+            final List<String> samples = new ArrayList<String>();
+            final List<File> bamFiles = new ArrayList<File>();
+            readBamList(bamListFile, samples, bamFiles);
+            final int threads = Math.min(bamFiles.size(), Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+
+            final File[] sampleFiles = new File[samples.size()];
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            try {
+            	for (int i = 0; i < samples.size(); i++) {
+            		final int sample = i;
+            		sampleFiles[sample] = new File(outPrefix + "." + samples.get(sample) + ".coverage.tsv");
+            		futures.add(executor.submit(() -> {
+            			calculateSampleCoverage(targets, bamFiles.get(sample), filter, depth, sampleFiles[sample]);
+            			return null;
+            		}));
+            	}
+            	for (Future<?> future : futures) {
+            		future.get();
+            	}
+            } catch (InterruptedException e) {
+            	Thread.currentThread().interrupt();
+            	throw new RuntimeException("Interrupted while calculating coverage", e);
+            } catch (ExecutionException e) {
+            	if (e.getCause() instanceof IOException) {
+            		throw (IOException) e.getCause();
+            	} else if (e.getCause() instanceof RuntimeException) {
+            		throw (RuntimeException) e.getCause();
+            	}
+            	throw new RuntimeException(e.getCause());
+            } finally {
+            	stopWorkers(executor, futures);
+            }
+
+            filter.logCounts(log);
+            filter.reportCounts(ToolMetrics.current());
+            writeMatrices(targets, samples, sampleFiles, depth, outPrefix);
+        });
+	}
+
+    /* Read the BAM list. The sample name is taken from the list, else from the read groups of the
+     * BAM, else from the file name, and a repeated name gets the first free suffix _2, _3, ...
+     */
+    private static void readBamList(File bamListFile, List<String> samples, List<File> bamFiles) throws IOException {
+    	final Set<String> seen = new HashSet<String>();
+    	final BufferedReader reader = new BufferedReader(new FileReader(bamListFile));
+    	String line;
+    	while ((line = reader.readLine()) != null) {
+    		line = line.trim();
+    		if (line.isEmpty() || line.startsWith("#")) {
+    			continue;
+    		}
+    		final String[] fields = line.split("\t");
+    		final File bamFile = new File(fields[fields.length - 1]);
+    		final String name = fields.length > 1 ? fields[0] : sampleName(bamFile);
+    		String sample = name;
+    		for (int i = 2; !seen.add(sample); i++) {
+    			sample = name + "_" + i;
+    		}
+    		samples.add(sample);
+    		bamFiles.add(bamFile);
+    	}
+    	reader.close();
+    }
+
+    private static String sampleName(File bamFile) {
+    	for (SAMReadGroupRecord readGroup : SamReaderFactory.makeDefault().getFileHeader(bamFile).getReadGroups()) {
+    		if (readGroup.getSample() != null) {
+    			return readGroup.getSample();
+    		}
+    	}
+    	return bamFile.getName().replaceAll("\\.bam$", "");
+    }
+
+    private static void calculateSampleCoverage(TargetSet targets, File bamFile, ReadFilter filter, int depth, File outputFile) throws IOException {
+    	log.info("Calculating coverage of " + bamFile);
+    	final CoverageStats stats = new CoverageStats(new int[] { depth }, true, 1000);
+    	final SamReader samReader = ReadAhead.current().openBam(filter.readerFactory(), bamFile);
+    	final PrintWriter outWriter = new PrintWriter(outputFile);
+    	outWriter.println(CalculateTargetRegionCoverage.getHeader(stats));
+    	CalculateTargetRegionCoverage.sweepTargets(targets, samReader, bamFile, 1, filter, stats, null, outWriter);
+    	outWriter.close();
+    	samReader.close();
+    }
+
+    /* Merge the per sample coverage files into targets x samples matrices, a line at a time.
+     * Targets missing from a sample (their contig is not in its BAM) are NA.
+     */
+    private static void writeMatrices(TargetSet targets, List<String> samples, File[] sampleFiles, int depth, String outPrefix) throws IOException {
+    	final BufferedReader[] readers = new BufferedReader[sampleFiles.length];
+    	final String[][] pending = new String[sampleFiles.length][];
+    	for (int i = 0; i < readers.length; i++) {
+    		readers[i] = new BufferedReader(new FileReader(sampleFiles[i]));
+    		readers[i].readLine();
+    		pending[i] = nextLine(readers[i]);
+    	}
+    	final PrintWriter readCountWriter = new PrintWriter(outPrefix + ".readCount.tsv");
+    	final PrintWriter meanDepthWriter = new PrintWriter(outPrefix + ".meanDepth.tsv");
+    	final PrintWriter fractionWriter = new PrintWriter(outPrefix + ".fraction" + depth + "X.tsv");
+    	final String header = "chr\tstart\tend\tname\t" + String.join("\t", samples);
+    	readCountWriter.println(header);
+    	meanDepthWriter.println(header);
+    	fractionWriter.println(header);
+
+    	// columns of the coverage files: chr start end name length readCount coverage totalBases0X totalBasesNX meanDepth medianDepth
+    	final StringBuilder readCounts = new StringBuilder();
+    	final StringBuilder meanDepths = new StringBuilder();
+    	final StringBuilder fractions = new StringBuilder();
+    	for (int target = 0; target < targets.size(); target++) {
+    		final String prefix = targets.getContig(target) + "\t" + targets.getStart(target) + "\t" + targets.getEnd(target) + "\t" + targets.getName(target);
+    		readCounts.setLength(0);
+    		meanDepths.setLength(0);
+    		fractions.setLength(0);
+    		readCounts.append(prefix);
+    		meanDepths.append(prefix);
+    		fractions.append(prefix);
+    		for (int i = 0; i < readers.length; i++) {
+    			final String[] fields = pending[i];
+    			if (fields != null && fields[0].equals(targets.getContig(target)) && Integer.parseInt(fields[1]) == targets.getStart(target)
+    					&& Integer.parseInt(fields[2]) == targets.getEnd(target)) {
+    				readCounts.append('\t').append(fields[5]);
+    				meanDepths.append('\t').append(fields[9]);
+    				fractions.append('\t').append(Integer.parseInt(fields[8]) / Double.parseDouble(fields[4]));
+    				pending[i] = nextLine(readers[i]);
+    			} else {
+    				readCounts.append("\tNA");
+    				meanDepths.append("\tNA");
+    				fractions.append("\tNA");
+    			}
+    		}
+    		readCountWriter.println(readCounts);
+    		meanDepthWriter.println(meanDepths);
+    		fractionWriter.println(fractions);
+    	}
+    	for (BufferedReader reader : readers) {
+    		reader.close();
+    	}
+    	readCountWriter.close();
+    	meanDepthWriter.close();
+    	fractionWriter.close();
+    }
+
+    private static String[] nextLine(BufferedReader reader) throws IOException {
+    	final String line = reader.readLine();
+    	return line != null ? line.split("\t") : null;
+    }
+}
@@ -1,37 +1,46 @@
 package tools;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
-import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.BAMIndex;
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.util.CoordMath;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
 import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.Feature;
-import htsjdk.tribble.FeatureCodec;
-import htsjdk.tribble.Tribble;
 import htsjdk.tribble.bed.BEDCodec;
 import htsjdk.tribble.bed.BEDFeature;
 import htsjdk.tribble.bed.FullBEDFeature;
-import htsjdk.tribble.index.Index;
-import htsjdk.tribble.index.IndexFactory;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.tribble.util.LittleEndianOutputStream;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -50,38 +59,149 @@ public class CalculateTargetRegionCoverage extends CommandLineTool {
 	private static final Log log = Log.getInstance(CalculateTargetRegionCoverage.class);
 
 	public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
-            System.out.println("Usage: " + CalculateTargetRegionCoverage.class.getCanonicalName() + " bedFile bamFile [outFile]");
-            System.exit(1);
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options, "--sweep", "--stream");
+        if (options.containsKey("--bin-size")) {
+        	calculateBinnedCoverage(args, options, positional);
+        	return;
         }
-        final File bedFile = new File(args[0]);
-        final File bamFile = new File(args[1]);
-        final File outputFile = args.length >= 3 ? new File(args[2]) : null;
-        
-        final long start = System.currentTimeMillis();
-
-        log.info("Start with args:" + Arrays.toString(args));
-        printConfigurationInfo(version);
-
-        // open BED file
-        BEDCodec bedCodec = new BEDCodec();
-        final AbstractFeatureReader<BEDFeature, LineIterator> bedReader = AbstractFeatureReader.getFeatureReader(bedFile.getAbsolutePath(), bedCodec, false);
-           
-        // open SAM file
-        final SamReader samReader = SamReaderFactory.makeDefault().open(bamFile);
-
-       	// open output file
-        PrintWriter outWriter = (outputFile != null) ? new PrintWriter(outputFile) : null;
-        String outStr = "chr\tstart\tend\tname\tlength\treadCount\tcoverage\ttotalBases0X\ttotalBases10X";
-        if (outWriter != null) {
-        	outWriter.println(outStr);
-        } else {
-        	log.info(outStr);
+        if (positional.size() < 2) {
+            System.out.println("Usage: " + CalculateTargetRegionCoverage.class.getCanonicalName() + " [--sweep | --stream] [--threads N] [--depth 1,10,20,...] [--histogram file] [--max-depth N] [--depth-track file] [--sample-fraction F]"
+            		+ " [--include-flags N] [--exclude-flags N] [--min-mapq N] [--min-base-quality N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] bedFile bamFile [outFile]");
+            System.out.println("   or: " + CalculateTargetRegionCoverage.class.getCanonicalName() + " --bin-size N [--stream]"
+            		+ " [--include-flags N] [--exclude-flags N] [--min-mapq N] [--min-base-quality N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] bamFile [outFile]");
+            exitWithUsage();
+        }
+        final File bedFile = new File(positional.get(0));
+        final File bamFile = new File(positional.get(1));
+        final File outputFile = positional.size() >= 3 ? new File(positional.get(2)) : null;
+        final int threads = Integer.parseInt(options.getOrDefault("--threads", "1"));
+        if (threads > 1 && options.containsKey("--stream")) {
+        	// a stream is read in one pass, which cannot be split between threads
+        	System.out.println("--threads cannot be combined with --stream");
+        	exitWithUsage();
         }
+        // a sample of the reads is swept, for a quick estimate of the depths
+        final double sampleFraction = Double.parseDouble(options.getOrDefault("--sample-fraction", "1"));
+        final ReadFilter filter = readFilter(options, sampleFraction);
+        final boolean stream = options.containsKey("--stream");
+        final boolean sweep = options.containsKey("--sweep") || threads > 1 || sampleFraction < 1;
+        final File histogramFile = options.containsKey("--histogram") ? new File(options.get("--histogram")) : null;
+        final DepthTrackWriter depthTrack = options.containsKey("--depth-track") ? new DepthTrackWriter(new File(options.get("--depth-track"))) : null;
+        // without explicit thresholds the columns stay as they have always been, unless the depths are estimated
+        final CoverageStats stats = options.containsKey("--depth")
+        		? new CoverageStats(CoverageStats.parseThresholds(options.get("--depth")), true, Integer.parseInt(options.getOrDefault("--max-depth", "1000")), sampleFraction)
+        		: new CoverageStats(CoverageStats.DEFAULT_THRESHOLDS, sampleFraction < 1, Integer.parseInt(options.getOrDefault("--max-depth", "1000")), sampleFraction);
+        
+        runTool(CalculateTargetRegionCoverage.class, version, args, options, () -> {
+            // open SAM file; a stream is read as it comes, from standard input for "-"
+            final ReadAhead readAhead = ReadAhead.current();
+            final SamReader samReader = !stream ? readAhead.openBam(filter.readerFactory(), bamFile)
+            		: filter.readerFactory().open(SamInputResource.of(positional.get(1).equals("-") ? System.in : readAhead.openStream(bamFile)));
+
+           	// open output file
+            PrintWriter outWriter = (outputFile != null) ? new PrintWriter(outputFile) : null;
+            String outStr = getHeader(stats);
+            if (outWriter != null) {
+            	outWriter.println(outStr);
+            } else {
+            	log.info(outStr);
+            }
         
+            if (stream) {
+            	final TargetSet targets = SharedReaders.getInstance().readTargets(bedFile);
+            	for (String contig : targets.getMissingContigs(samReader.getFileHeader().getSequenceDictionary())) {
+            		log.warn("Feature " + contig + " does not exist in the SAM reference. Skipping BED feature...");
+            	}
+            	streamTargets(targets, samReader, filter, stats, depthTrack, outWriter);
+            } else if (sweep) {
+            	final TargetSet targets = SharedReaders.getInstance().readTargets(bedFile);
+            	for (String contig : targets.getMissingContigs(samReader.getFileHeader().getSequenceDictionary())) {
+            		log.warn("Feature " + contig + " does not exist in the SAM reference. Skipping BED feature...");
+            	}
+            	if (sampleFraction < 1) {
+            		logSampleSize(targets, samReader, sampleFraction);
+            	}
+            	sweepTargets(targets, samReader, bamFile, threads, filter, stats, depthTrack, outWriter);
+            } else {
+            	// open BED file
+            	BEDCodec bedCodec = new BEDCodec();
+            	final AbstractFeatureReader<BEDFeature, LineIterator> bedReader = readAhead.openFeatures(bedFile, bedCodec);
+            	queryTargets(bedReader, samReader, filter, stats, depthTrack, outWriter);
+            	bedReader.close();
+            }
+            if (depthTrack != null) {
+            	depthTrack.close();
+            }
+            if (histogramFile != null) {
+            	stats.writeHistogram(histogramFile);
+            }
+        	if (outWriter != null)
+        		outWriter.close();
+        	samReader.close();
+        	if (sampleFraction < 1) {
+        		log.info("Estimated " + stats.estimate());
+        	}
+        	filter.logCounts(log);
+        	filter.reportCounts(ToolMetrics.current());
+        });
+	}
+
+    /* Count reads and aligned bases in fixed size bins along the whole genome, in one sequential pass
+     * over the reads.
+     */
+    private static void calculateBinnedCoverage(String[] args, Map<String, String> options, List<String> positional) throws IOException {
+        if (positional.size() < 1) {
+            System.out.println("Usage: " + CalculateTargetRegionCoverage.class.getCanonicalName() + " --bin-size N [--stream]"
+            		+ " [--include-flags N] [--exclude-flags N] [--min-mapq N] [--min-base-quality N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] bamFile [outFile]");
+            exitWithUsage();
+        }
+        final File bamFile = new File(positional.get(0));
+        final File outputFile = positional.size() >= 2 ? new File(positional.get(1)) : null;
+        final int binSize = Integer.parseInt(options.get("--bin-size"));
+        final ReadFilter filter = readFilter(options);
+
+        runTool(CalculateTargetRegionCoverage.class, version, args, options, () -> {
+            final ReadAhead readAhead = ReadAhead.current();
+            final SamReader samReader = !options.containsKey("--stream") ? readAhead.openBam(filter.readerFactory(), bamFile)
+            		: filter.readerFactory().open(SamInputResource.of(positional.get(0).equals("-") ? System.in : readAhead.openStream(bamFile)));
+            final Writer outWriter = new BufferedWriter(outputFile != null ? new FileWriter(outputFile) : new OutputStreamWriter(System.out), 1 << 20);
+            outWriter.write(CoverageBins.HEADER);
+            outWriter.write('\n');
+
+            final CoverageBins bins = new CoverageBins(samReader.getFileHeader().getSequenceDictionary(), binSize, filter, outWriter);
+            final ProgressLogger pl = new ProgressLogger(log, 10000000);
+            CloseableIterator<SAMRecord> samIterator = readAhead.iterate(samReader.iterator());
+            while (samIterator.hasNext()) {
+            	SAMRecord rec = samIterator.next();
+            	pl.record(rec);
+            	// unplaced reads come last in a coordinate sorted file
+            	if (rec.getReferenceIndex() < 0) break;
+            	if (filter.reject(rec)) continue;
+            	bins.add(rec);
+            }
+            samIterator.close();
+            bins.finish();
+            outWriter.close();
+            samReader.close();
+            filter.logCounts(log);
+            filter.reportCounts(ToolMetrics.current());
+        });
+    }
+
+    /* Query the reads of every BED feature separately, in BED order.
+     */
+    @SuppressWarnings("try")
+    private static void queryTargets(AbstractFeatureReader<BEDFeature, LineIterator> bedReader, SamReader samReader, ReadFilter filter, CoverageStats stats, DepthTrackWriter depthTrack, PrintWriter outWriter) throws IOException {
         // iterate BED file
     	long totalReadCount = 0l;
     	long bedRecordCount = 0l;
+    	final ToolMetrics metrics = ToolMetrics.current();
+    	// reads that start within an earlier query of the reference were counted by the filter then;
+    	// exact when the BED file is sorted, and a feature that starts further back starts afresh
+    	String queriedContig = null;
+    	int queriedStart = 0;
+    	int countedTo = Integer.MIN_VALUE;
     	Iterator<BEDFeature> bedIterator = bedReader.iterator();
     	while (bedIterator.hasNext()) {
     		BEDFeature bedFeature = bedIterator.next();
@@ -93,136 +213,260 @@ public class CalculateTargetRegionCoverage extends CommandLineTool {
         	}
 
     		// iterate the SAM records that overlap this BED feature and record how many SAM reads are each position of the BED feature
-        	int bedFeatureStart = bedFeature.getStart();
-        	int bedFeatureEnd = bedFeature.getEnd();
-        	int bedFeatureLength = bedFeatureEnd - bedFeatureStart + 1;
-        	int[] perBaseCoverage = new int[bedFeatureLength];
-        	int readCount = 0;
+        	DepthAccumulator depth = new DepthAccumulator(bedFeature.getStart(), bedFeature.getEnd());
+        	if (!bedFeature.getContig().equals(queriedContig) || bedFeature.getStart() < queriedStart) {
+        		queriedContig = bedFeature.getContig();
+        		countedTo = Integer.MIN_VALUE;
+        	}
         	
-    		SAMRecordIterator samIterator = samReader.query(bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd(), false);
-    		while (samIterator.hasNext()) {
-        		SAMRecord rec = samIterator.next();
-        		if (filterRead(rec)) continue;
-            	
-	       		readCount++;
-			// walk over each base of the bed feature and add 1 to each base this read covers.
-			for (final AlignmentBlock block : rec.getAlignmentBlocks()) {
-				final int end = CoordMath.getEnd(block.getReferenceStart(), block.getLength());
-				for (int pos=block.getReferenceStart(); pos<=end; ++ pos) {
-					if (pos >= bedFeatureStart && pos <= bedFeatureEnd) {
-						perBaseCoverage[pos - bedFeatureStart]++;
-					}
-				}
-        		}
+    		metrics.count(ToolMetrics.SEEKS, 1);
+    		try (ToolMetrics.Timer timer = metrics.time(ToolMetrics.QUERY)) {
+    			CloseableIterator<SAMRecord> samIterator = samReader.query(bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd(), false);
+    			while (samIterator.hasNext()) {
+    				SAMRecord rec = samIterator.next();
+    				if (filter.reject(rec, countedTo)) continue;
+
+    				// add 1 to each base of the bed feature this read covers.
+    				filter.addToDepth(rec, depth);
+    			}
+    			samIterator.close();
     		}
-    		samIterator.close();
+    		queriedStart = bedFeature.getStart();
+    		countedTo = Math.max(countedTo, bedFeature.getEnd());
 
-    		int totalBases0x = 0;
-    		int totalBases10x = 0;
-    		double coverage = readCount / (double)bedFeatureLength;
-        	for (int i = 0; i < perBaseCoverage.length; i++) {
-        		if (perBaseCoverage[i] == 0) {
-        			totalBases0x++;
-        		}
-        		if (perBaseCoverage[i] >= 10) {
-        			totalBases10x++;
-        		}        		
-        	}
-        	
-        	outStr = String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s", bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd(), 
-        								bedFeature.getName(), bedFeatureLength, readCount, coverage, totalBases0x, totalBases10x);
-        	if (outWriter != null)
-        		outWriter.println(outStr);
-        	else
-        		log.info(outStr);
+    		int readCount = depth.getReadCount();
+    		int[] perBaseCoverage = stats.scale(depth.resolve());
+    		if (depthTrack != null) {
+    			depthTrack.add(bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd(), perBaseCoverage);
+    		}
+        	writeFeature(outWriter, formatFeature(bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd(), bedFeature.getName(), readCount, perBaseCoverage, stats));
 
         	totalReadCount += readCount;
     		bedRecordCount++;
         }
-    	if (outWriter != null)
-    		outWriter.close();
-    	samReader.close();
-    	bedReader.close();
     	log.info("Found " + totalReadCount + " reads spanning " + bedRecordCount + " BED features");
-        final long end = System.currentTimeMillis();
-        log.info(String.format("Done. Elapsed time %.3f seconds", (end - start) / 1000.0));                
-	}
+    }
+
+    /* Stream the reads of every reference once, crediting each read to all the BED features it
+     * overlaps. The results are written in BED order.
+     * With more than one thread the references are split into chunks of similar target length,
+     * which are swept concurrently, each worker with a reader of its own.
+     */
+    static void sweepTargets(TargetSet targets, SamReader samReader, File bamFile, int threads, ReadFilter filter, CoverageStats stats, DepthTrackWriter depthTrack, PrintWriter outWriter) throws IOException {
+    	final SAMSequenceDictionary dictionary = samReader.getFileHeader().getSequenceDictionary();
+    	final String[] lines = new String[targets.size()];
+    	final LongAdder totalReadCount = new LongAdder();
+    	CoverageSweep.Listener listener = (target, readCount, sampledCoverage) -> {
+    		final int[] perBaseCoverage = stats.scale(sampledCoverage);
+    		if (depthTrack != null) {
+    			try {
+    				depthTrack.add(targets.getContig(target), targets.getStart(target), targets.getEnd(target), perBaseCoverage);
+    			} catch (IOException e) {
+    				throw new RuntimeIOException("Unable to write the depth track", e);
+    			}
+    		}
+    		lines[target] = formatFeature(targets.getContig(target), targets.getStart(target), targets.getEnd(target), targets.getName(target), readCount, perBaseCoverage, stats);
+    		totalReadCount.add(readCount);
+    	};
+    	final int[][] referenceTargets = targets.targetsByReference(dictionary);
+    	if (threads <= 1) {
+    		for (int[] chunk : referenceTargets) {
+    			sweepChunk(samReader, targets, chunk, Integer.MIN_VALUE, dictionary, filter, listener);
+    		}
+    	} else {
+    		// aim for a few chunks per thread so that a large reference does not hold up the rest
+    		long targetLength = 0;
+    		for (int[] reference : referenceTargets) {
+    			for (int target : reference) {
+    				targetLength += targets.getLength(target);
+    			}
+    		}
+    		final long chunkLength = Math.max(1, targetLength / (threads * 4));
+    		final List<int[]> chunks = new ArrayList<int[]>();
+    		for (int[] reference : referenceTargets) {
+    			chunks.addAll(CoverageSweep.chunk(targets, reference, chunkLength));
+    		}
+    		log.info("Sweeping " + chunks.size() + " chunks of BED features with " + threads + " threads");
+    		// the reads of a chunk that start within the span of an earlier chunk of its reference were counted by the filter there
+    		final int[] countedTo = new int[chunks.size()];
+    		for (int c = 0; c < chunks.size(); c++) {
+    			countedTo[c] = Integer.MIN_VALUE;
+    			if (c > 0 && targets.getContig(chunks.get(c - 1)[0]).equals(targets.getContig(chunks.get(c)[0]))) {
+    				countedTo[c] = Math.max(countedTo[c - 1], CoverageSweep.span(targets, chunks.get(c - 1))[1]);
+    			}
+    		}
+
+    		final BlockingQueue<SamReader> readers = new ArrayBlockingQueue<SamReader>(threads);
+    		readers.add(samReader);
+    		for (int i = 1; i < threads; i++) {
+    			readers.add(ReadAhead.current().openBam(filter.readerFactory(), bamFile));
+    		}
+    		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    		final List<Future<?>> futures = new ArrayList<Future<?>>();
+    		try {
+    			for (int c = 0; c < chunks.size(); c++) {
+    				final int[] chunk = chunks.get(c);
+    				final int chunkCountedTo = countedTo[c];
+    				futures.add(executor.submit(() -> {
+    					SamReader reader = readers.take();
+    					try {
+    						sweepChunk(reader, targets, chunk, chunkCountedTo, dictionary, filter, listener);
+    					} finally {
+    						readers.put(reader);
+    					}
+    					return null;
+    				}));
+    			}
+    			for (Future<?> future : futures) {
+    				future.get();
+    			}
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new RuntimeException("Interrupted while sweeping BED features", e);
+    		} catch (ExecutionException e) {
+    			if (e.getCause() instanceof RuntimeException) {
+    				throw (RuntimeException) e.getCause();
+    			}
+    			throw new RuntimeException(e.getCause());
+    		} finally {
+    			stopWorkers(executor, futures);
+    			for (SamReader reader : readers) {
+    				if (reader != samReader) {
+    					reader.close();
+    				}
+    			}
+    		}
+    	}
+
+    	int featureCount = 0;
+    	for (String line : lines) {
+    		if (line != null) {
+    			writeFeature(outWriter, line);
+    			featureCount++;
+    		}
+    	}
+    	log.info("Found " + totalReadCount.sum() + " reads spanning " + featureCount + " BED features");
+    }
+
+    /* Sweep all the BED features over coordinate sorted reads that are read as they arrive, without
+     * an index. The line of each feature is written as soon as the reads have moved past it, so the
+     * features come out reference by reference in the order the reads leave them, which is neither
+     * BED order nor strictly by end, and only the features spanned by the current reads are held in
+     * memory.
+     */
+    private static void streamTargets(TargetSet targets, SamReader samReader, ReadFilter filter, CoverageStats stats, DepthTrackWriter depthTrack, PrintWriter outWriter) throws IOException {
+    	final SAMSequenceDictionary dictionary = samReader.getFileHeader().getSequenceDictionary();
+    	final int[] ids = Arrays.stream(targets.targetsByReference(dictionary)).flatMapToInt(Arrays::stream).toArray();
+    	final long[] totalReadCount = new long[1];
+    	CoverageSweep coverageSweep = new CoverageSweep(targets, ids, dictionary, filter, (target, readCount, sampledCoverage) -> {
+    		final int[] perBaseCoverage = stats.scale(sampledCoverage);
+    		if (depthTrack != null) {
+    			try {
+    				depthTrack.add(targets.getContig(target), targets.getStart(target), targets.getEnd(target), perBaseCoverage);
+    			} catch (IOException e) {
+    				throw new RuntimeIOException("Unable to write the depth track", e);
+    			}
+    		}
+    		writeFeature(outWriter, formatFeature(targets.getContig(target), targets.getStart(target), targets.getEnd(target), targets.getName(target), readCount, perBaseCoverage, stats));
+    		totalReadCount[0] += readCount;
+    	});
+
+    	final ProgressLogger pl = new ProgressLogger(log, 10000000);
+    	int lastReference = -1;
+    	int lastStart = 0;
+    	CloseableIterator<SAMRecord> samIterator = ReadAhead.current().iterate(samReader.iterator());
+    	while (samIterator.hasNext()) {
+    		SAMRecord rec = samIterator.next();
+    		pl.record(rec);
+    		// unplaced reads come last in a coordinate sorted file
+    		if (rec.getReferenceIndex() < 0) break;
+    		if (rec.getReferenceIndex() < lastReference || (rec.getReferenceIndex() == lastReference && rec.getAlignmentStart() < lastStart)) {
+    			throw new IllegalStateException("Reads are not coordinate sorted: " + rec.getReadName() + " at " + rec.getReferenceName() + ":" + rec.getAlignmentStart());
+    		}
+    		lastReference = rec.getReferenceIndex();
+    		lastStart = rec.getAlignmentStart();
+    		if (filter.reject(rec)) continue;
+    		coverageSweep.add(rec);
+    	}
+    	samIterator.close();
+    	coverageSweep.finish();
+    	log.info("Found " + totalReadCount[0] + " reads spanning " + ids.length + " BED features");
+    }
+
+    /* Stream the reads spanned by a group of BED features on one reference through a coverage sweep.
+     * The filter leaves out of its counts the reads that start at or before countedTo.
+     */
+    @SuppressWarnings("try")
+    private static void sweepChunk(SamReader samReader, TargetSet targets, int[] chunk, int countedTo, SAMSequenceDictionary dictionary, ReadFilter filter, CoverageSweep.Listener listener) {
+    	CoverageSweep coverageSweep = new CoverageSweep(targets, chunk, dictionary, filter, listener);
+    	int[] span = CoverageSweep.span(targets, chunk);
+    	final ToolMetrics metrics = ToolMetrics.current();
+    	metrics.count(ToolMetrics.SEEKS, 1);
+    	try (ToolMetrics.Timer timer = metrics.time(ToolMetrics.QUERY)) {
+    		CloseableIterator<SAMRecord> samIterator = ReadAhead.current().iterate(samReader.query(targets.getContig(chunk[0]), span[0], span[1], false));
+    		while (samIterator.hasNext()) {
+    			SAMRecord rec = samIterator.next();
+    			if (filter.reject(rec, countedTo)) continue;
+    			coverageSweep.add(rec);
+    		}
+    		samIterator.close();
+    	}
+    	coverageSweep.finish();
+    }
+
+    /* The column names of the summary lines.
+     */
+    static String getHeader(CoverageStats stats) {
+    	return "chr\tstart\tend\tname\tlength\treadCount\tcoverage\t" + stats.getHeader();
+    }
+
+    /* Format the summary line of a BED feature from the per base coverage of its bases, scaled when
+     * the reads were sampled, and the number of reads counted in it.
+     */
+    private static String formatFeature(String contig, int start, int end, String name, int readCount, int[] perBaseCoverage, CoverageStats stats) {
+		double coverage = stats.scale(readCount) / (double)perBaseCoverage.length;
+    	return String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s\t%s", contig, start, end, 
+    								name, perBaseCoverage.length, stats.scale(readCount), coverage, stats.format(perBaseCoverage, readCount));
+    }
 
-    /* Return true if the read should be filtered out
-     * 
+    /* Log the number of reads that the sample is expected to hold, from the counts of aligned reads
+     * kept in the index for each reference with BED features.
      */
-    private static boolean filterRead(SAMRecord rec) {
-        // Just plain avoid records that are marked as not-primary
-        if (rec.getNotPrimaryAlignmentFlag()) return true;
-        // Check for PF reads
-        if (rec.getReadFailsVendorQualityCheckFlag()) return true;
-        // Check for unmapped reads
-        if (rec.getReadUnmappedFlag()) return true;
-        // Check for reads that are marked as duplicates
-        if (rec.getDuplicateReadFlag()) return true;
-        // Don't bother with reads that didn't align uniquely
-        if (rec.getMappingQuality() == 0) return true;
-
-        return false;
+    private static void logSampleSize(TargetSet targets, SamReader samReader, double sampleFraction) {
+    	if (!samReader.hasIndex()) {
+    		return;
+    	}
+    	final BAMIndex index = samReader.indexing().getIndex();
+    	final SAMSequenceDictionary dictionary = samReader.getFileHeader().getSequenceDictionary();
+    	final int[][] referenceTargets = targets.targetsByReference(dictionary);
+    	long alignedReads = 0;
+    	for (int[] reference : referenceTargets) {
+    		if (reference.length > 0) {
+    			alignedReads += index.getMetaData(dictionary.getSequenceIndex(targets.getContig(reference[0]))).getAlignedRecordCount();
+    		}
+    	}
+    	log.info(String.format("Sampling %s of the reads by name: about %d of the %d reads aligned to the references of the BED features",
+    			sampleFraction, Math.round(alignedReads * sampleFraction), alignedReads));
+    }
+
+    private static void writeFeature(PrintWriter outWriter, String outStr) {
+    	if (outWriter != null)
+    		outWriter.println(outStr);
+    	else
+    		log.info(outStr);
     }
-	
-
-    private static AbstractFeatureReader getBEDReader(File bedFile) {
-	    FeatureCodec bedCodec = new BEDCodec();
-	    // get an index
-	    Index bedIndex = loadIndex(bedFile, bedCodec);
-	    // get a reader
-	    AbstractFeatureReader bedReader = AbstractFeatureReader.getFeatureReader(bedFile.getAbsolutePath(), bedCodec, bedIndex);
-		return bedReader;
+
+    /* Build the read filter chain from the command line options. By default secondary, QC failed,
+     * unmapped and duplicate reads are filtered out, as are reads that didn't align uniquely.
+     */
+    static ReadFilter readFilter(Map<String, String> options) {
+    	return readFilter(options, 1.0);
     }
-    
-    /**
-    *
-    * @param featureFile the feature file
-    * @param codec the codec to decode features with
-    * @return an index instance
-    */
-   public static Index loadIndex(File featureFile, FeatureCodec codec) {
-       // lets setup a index file name
-       File indexFile = Tribble.indexFile(featureFile);
-
-       // our index instance;
-       Index index = null;
-
-       // can we read the index file
-       if (indexFile.canRead()) {
-    	   log.info("Loading index from disk for index file -> " + indexFile);
-           index = IndexFactory.loadIndex(indexFile.getAbsolutePath());
-       // else we want to make the index, and write it to disk if possible
-       } else {
-           log.info("Creating the index and memory, then writing to disk for index file -> " + indexFile);
-           index = createAndWriteNewIndex(featureFile,indexFile,codec);
-       }
-
-       return index;
-   }
-
-   /**
-    * creates a new index, given the feature file and the codec
-    * @param featureFile the feature file (i.e. .vcf, .bed)
-    * @param indexFile the index file; the location we should be writing the index to
-    * @param codec the codec to read features with
-    * @return an index instance
-    */
-   public static Index createAndWriteNewIndex(File featureFile, File indexFile, FeatureCodec codec) {
-       try {
-           Index index = IndexFactory.createLinearIndex(featureFile, codec);
-
-           // try to write it to disk
-           LittleEndianOutputStream stream = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
-           		
-           index.write(stream);
-           stream.close();
-
-           return index;
-       } catch (IOException e) {
-           throw new RuntimeIOException("Unable to create index from file " + featureFile,e);
-       }
-   }
 
+    static ReadFilter readFilter(Map<String, String> options, double sampleFraction) {
+    	return new ReadFilter(Integer.decode(options.getOrDefault("--include-flags", "0")),
+    			Integer.decode(options.getOrDefault("--exclude-flags", String.valueOf(ReadFilter.DEFAULT_EXCLUDED_FLAGS))),
+    			Integer.parseInt(options.getOrDefault("--min-mapq", String.valueOf(ReadFilter.DEFAULT_MIN_MAPPING_QUALITY))),
+    			Integer.parseInt(options.getOrDefault("--min-base-quality", "0")), sampleFraction);
+    }
 }
@@ -0,0 +1,210 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+
+/*
+ * A local file read through an NIO channel in large chunks. Chunks start small and double while
+ * the reads stay sequential, so the scattered reads of index queries do not pay for a large chunk,
+ * and once they are sequential the next chunk is read on another thread while this one is used.
+ * A memory mapped file is copied straight out of the mapping instead, and the kernel reads ahead.
+ */
+public class ChunkedFileStream extends SeekableStream {
+	static final int FIRST_CHUNK_SIZE = 64 << 10;
+	static final int MAX_CHUNK_SIZE = 4 << 20;
+
+	private final File file;
+	private final long length;
+	private final FileChannel channel;
+	private final MappedFile mapped;
+	private final ExecutorService prefetcher;
+	private final ToolMetrics metrics;
+	private ByteBuffer chunk = ByteBuffer.allocate(0);
+	private ByteBuffer spare = null;
+	private long chunkStart = 0;
+	private int chunkSize = FIRST_CHUNK_SIZE;
+	private int sequentialChunks = 0;
+	private Future<ByteBuffer> next = null;
+	private long nextStart = -1;
+	private long position = 0;
+
+	/**
+	 * @param prefetcher reads the next chunk ahead, or null to read every chunk when it is needed
+	 * @param metrics the run whose io wait the reads that were not ready count towards
+	 */
+	public ChunkedFileStream(File file, boolean mapped, ExecutorService prefetcher, ToolMetrics metrics) throws IOException {
+		// a pipe has a size of 0 and would read as empty
+		if (!file.isFile()) {
+			throw new IOException(file + " is not a regular file and cannot be read in chunks");
+		}
+		this.file = file;
+		if (mapped) {
+			this.mapped = new MappedFile(file);
+			this.channel = null;
+			this.length = this.mapped.length();
+		} else {
+			this.mapped = null;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.length = channel.size();
+		}
+		this.prefetcher = mapped ? null : prefetcher;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public long position() {
+		return position;
+	}
+
+	@Override
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	@Override
+	public boolean eof() {
+		return position >= length;
+	}
+
+	@Override
+	public String getSource() {
+		return file.getAbsolutePath();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position >= length) {
+			return -1;
+		}
+		if (mapped != null) {
+			return mapped.getByte(position++);
+		}
+		if (position < chunkStart || position >= chunkStart + chunk.limit()) {
+			fill();
+		}
+		return chunk.get((int) (position++ - chunkStart)) & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (position >= this.length) {
+			return -1;
+		}
+		if (mapped != null) {
+			final int n = (int) Math.min(length, this.length - position);
+			mapped.get(position, buffer, offset, n);
+			position += n;
+			return n;
+		}
+		if (position < chunkStart || position >= chunkStart + chunk.limit()) {
+			fill();
+		}
+		final int start = (int) (position - chunkStart);
+		final int n = Math.min(length, chunk.limit() - start);
+		final ByteBuffer view = chunk.duplicate();
+		view.position(start);
+		view.get(buffer, offset, n);
+		position += n;
+		return n;
+	}
+
+	/* Make the chunk the one that holds the position: the chunk read ahead if the reads went on
+	 * where the last chunk ended, or a new, small chunk after a seek. Reading ahead starts with the
+	 * third sequential chunk, as the reads of most queries end before that.
+	 */
+	private void fill() throws IOException {
+		final boolean sequential = position == chunkStart + chunk.limit();
+		sequentialChunks = sequential ? sequentialChunks + 1 : 0;
+		chunkSize = sequential ? Math.min(chunkSize * 2, MAX_CHUNK_SIZE) : FIRST_CHUNK_SIZE;
+		final ByteBuffer previous = chunk;
+		final long start = System.nanoTime();
+		if (next != null && position == nextStart) {
+			final boolean ready = next.isDone();
+			chunk = await(next);
+			if (!ready) {
+				ReadAhead.stalled(metrics, start);
+			}
+		} else {
+			if (next != null) {
+				// a chunk read ahead for a position that was skipped is dropped, and its buffer with it
+				next.cancel(false);
+			}
+			chunk = readChunk(position, chunkSize, spare);
+			ReadAhead.stalled(metrics, start);
+		}
+		// the buffers of the chunks are used in turn
+		spare = previous;
+		chunkStart = position;
+		next = null;
+		nextStart = chunkStart + chunk.limit();
+		if (prefetcher != null && sequentialChunks >= 2 && nextStart < length) {
+			final long prefetchStart = nextStart;
+			final int prefetchSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+			final ByteBuffer buffer = spare;
+			spare = null;
+			next = prefetcher.submit(() -> readChunk(prefetchStart, prefetchSize, buffer));
+		}
+	}
+
+	/* Read a chunk into the buffer if it is large enough, or into a new one.
+	 */
+	private ByteBuffer readChunk(long start, int size, ByteBuffer buffer) throws IOException {
+		final int length = (int) Math.min(size, this.length - start);
+		if (buffer == null || buffer.capacity() < length) {
+			buffer = ByteBuffer.allocate(length);
+		}
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static ByteBuffer await(Future<ByteBuffer> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading ahead", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (next != null) {
+			// a read ahead still running fails on the closed channel, and nobody waits for it
+			next.cancel(false);
+			next = null;
+		}
+		if (channel != null) {
+			channel.close();
+		} else {
+			mapped.close();
+		}
+	}
+}
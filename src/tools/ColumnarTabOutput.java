@@ -0,0 +1,373 @@
+package tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * The table in a simple columnar binary format, for readers that only need some of its columns.
+ *
+ * The rows are cut into row groups of at most rowGroupSize rows and about MAX_ROW_GROUP_BYTES of
+ * text, so that wide tables are held a few groups at a time, and each column of a row group is
+ * encoded straight from the text of its rows and stored as one deflated
+ * chunk of typed values: INT when every value is an int as Java prints it, FLOAT when every value
+ * is a double as Java prints it, and otherwise STRING, a dictionary of the distinct values
+ * followed by an int code for each row. Empty values make a column STRING.
+ * The row groups are split and encoded on a pool of threads and written in order. Then comes the
+ * footer: the column names and, for each row group, its row count and the type, offset and length
+ * of each chunk. The file ends with the offset of the footer and the magic number, and it starts
+ * with the magic number. Values are big endian, and strings are UTF-8 with an int length.
+ * ColumnarTabReader reads it.
+ */
+public class ColumnarTabOutput implements TabOutput {
+	static final int MAGIC = 0x54414243;
+	static final byte INT = 1;
+	static final byte FLOAT = 2;
+	static final byte STRING = 3;
+	// a row group is cut once its text reaches this, whatever its row count
+	static final int MAX_ROW_GROUP_BYTES = 8 << 20;
+
+	private final PlainTabOutput out;
+	private final ExecutorService encoders;
+	private final int maxPending;
+	private final int rowGroupSize;
+	private final Deque<Future<RowGroup>> pending = new ArrayDeque<Future<RowGroup>>();
+	private final List<RowGroup> written = new ArrayList<RowGroup>();
+	private long offset = 0;
+
+	private String[] columns = null;
+	// the text of the rows of the next row group
+	private byte[] rows = new byte[1 << 16];
+	private int length = 0;
+	private int rowCount = 0;
+
+	public ColumnarTabOutput(File outputFile, int threads, int rowGroupSize) throws IOException {
+		this.out = new PlainTabOutput(outputFile);
+		this.encoders = Executors.newFixedThreadPool(threads, ReadAhead.daemonThreads("columnar-encoder"));
+		this.maxPending = threads * 2;
+		this.rowGroupSize = rowGroupSize;
+		writeInt(MAGIC);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		final int end = offset + length;
+		while (offset < end) {
+			int newline = offset;
+			while (newline < end && bytes[newline] != '\n') {
+				newline++;
+			}
+			append(bytes, offset, Math.min(newline + 1, end) - offset);
+			offset = newline + 1;
+			if (newline < end) {
+				endOfLine();
+			}
+		}
+	}
+
+	private void append(byte[] bytes, int offset, int count) {
+		if (this.length + count > rows.length) {
+			rows = Arrays.copyOf(rows, Math.max(this.length + count, rows.length * 2));
+		}
+		System.arraycopy(bytes, offset, rows, this.length, count);
+		this.length += count;
+	}
+
+	private void endOfLine() throws IOException {
+		if (columns == null) {
+			columns = new String(rows, 0, length - 1, StandardCharsets.UTF_8).split("\t", -1);
+			length = 0;
+		} else if (++rowCount == rowGroupSize || length >= MAX_ROW_GROUP_BYTES) {
+			submitRowGroup();
+		}
+	}
+
+	private void submitRowGroup() throws IOException {
+		final byte[] text = Arrays.copyOf(rows, length);
+		final int count = rowCount;
+		final int columnCount = columns.length;
+		pending.add(encoders.submit(() -> encode(text, count, columnCount)));
+		length = 0;
+		rowCount = 0;
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		final RowGroup group;
+		try {
+			group = pending.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		group.offsets = new long[group.chunks.length];
+		for (int c = 0; c < group.chunks.length; c++) {
+			group.offsets[c] = offset;
+			write(group.chunks[c]);
+		}
+		group.lengths = new int[group.chunks.length];
+		for (int c = 0; c < group.chunks.length; c++) {
+			group.lengths[c] = group.chunks[c].length;
+		}
+		group.chunks = null;
+		written.add(group);
+	}
+
+	private static RowGroup encode(byte[] text, int rowCount, int columnCount) throws IOException {
+		// where the next value of each row starts, as the columns are taken in turn
+		final int[] cursors = new int[rowCount];
+		for (int r = 1, i = 0; r < rowCount; r++) {
+			while (text[i] != '\n') {
+				i++;
+			}
+			cursors[r] = ++i;
+		}
+		final int[] starts = new int[rowCount];
+		final int[] ends = new int[rowCount];
+		final RowGroup group = new RowGroup(rowCount, columnCount);
+		for (int c = 0; c < columnCount; c++) {
+			for (int r = 0; r < rowCount; r++) {
+				int end = cursors[r];
+				while (text[end] != '\t' && text[end] != '\n') {
+					end++;
+				}
+				if ((text[end] == '\n') != (c == columnCount - 1)) {
+					throw new IOException("Row " + r + " of a row group does not have " + columnCount + " columns");
+				}
+				starts[r] = cursors[r];
+				ends[r] = end;
+				cursors[r] = end + 1;
+			}
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream chunk = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+				group.types[c] = encodeColumn(text, starts, ends, chunk);
+			}
+			group.chunks[c] = bytes.toByteArray();
+		}
+		return group;
+	}
+
+	private static byte encodeColumn(byte[] text, int[] starts, int[] ends, DataOutputStream chunk) throws IOException {
+		final int rowCount = starts.length;
+		if (allInts(text, starts, ends)) {
+			for (int r = 0; r < rowCount; r++) {
+				chunk.writeInt((int) parseInt(text, starts[r], ends[r]));
+			}
+			return INT;
+		}
+		if (allDoubles(text, starts, ends)) {
+			for (int r = 0; r < rowCount; r++) {
+				chunk.writeDouble(Double.parseDouble(new String(text, starts[r], ends[r] - starts[r], StandardCharsets.US_ASCII)));
+			}
+			return FLOAT;
+		}
+		// the values are looked up as slices of the text; only the distinct ones are kept
+		final Map<Slice, Integer> codes = new HashMap<Slice, Integer>();
+		final List<Slice> dictionary = new ArrayList<Slice>();
+		final int[] rowCodes = new int[rowCount];
+		final Slice probe = new Slice(text);
+		for (int r = 0; r < rowCount; r++) {
+			probe.set(starts[r], ends[r]);
+			Integer code = codes.get(probe);
+			if (code == null) {
+				code = dictionary.size();
+				final Slice value = new Slice(text);
+				value.set(starts[r], ends[r]);
+				codes.put(value, code);
+				dictionary.add(value);
+			}
+			rowCodes[r] = code;
+		}
+		chunk.writeInt(dictionary.size());
+		for (Slice value : dictionary) {
+			chunk.writeInt(value.end - value.start);
+			chunk.write(text, value.start, value.end - value.start);
+		}
+		for (int code : rowCodes) {
+			chunk.writeInt(code);
+		}
+		return STRING;
+	}
+
+	/* Values that print back the same after parsing, so that the column reads back unchanged.
+	 */
+	private static boolean allInts(byte[] text, int[] starts, int[] ends) {
+		for (int r = 0; r < starts.length; r++) {
+			if (parseInt(text, starts[r], ends[r]) == Long.MIN_VALUE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* An int as Java prints it: no plus sign, no leading zeros and no "-0". Anything else is
+	 * Long.MIN_VALUE.
+	 */
+	private static long parseInt(byte[] text, int start, int end) {
+		final boolean negative = start < end && text[start] == '-';
+		final int digits = negative ? start + 1 : start;
+		if (digits == end || end - digits > 10 || (text[digits] == '0' && (end - digits > 1 || negative))) {
+			return Long.MIN_VALUE;
+		}
+		long value = 0;
+		for (int i = digits; i < end; i++) {
+			if (text[i] < '0' || text[i] > '9') {
+				return Long.MIN_VALUE;
+			}
+			value = value * 10 + (text[i] - '0');
+		}
+		value = negative ? -value : value;
+		return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+	}
+
+	private static boolean allDoubles(byte[] text, int[] starts, int[] ends) {
+		try {
+			for (int r = 0; r < starts.length; r++) {
+				if (starts[r] == ends[r]) {
+					return false;
+				}
+				final String value = new String(text, starts[r], ends[r] - starts[r], StandardCharsets.UTF_8);
+				if (!Double.toString(Double.parseDouble(value)).equals(value)) {
+					return false;
+				}
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/* A value of a row group, as the bytes of its text from start to end.
+	 */
+	private static class Slice {
+		final byte[] text;
+		int start;
+		int end;
+		int hash;
+
+		Slice(byte[] text) {
+			this.text = text;
+		}
+
+		void set(int start, int end) {
+			this.start = start;
+			this.end = end;
+			int hash = 1;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + text[i];
+			}
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Slice)) {
+				return false;
+			}
+			final Slice slice = (Slice) other;
+			if (slice.hash != hash || slice.end - slice.start != end - start) {
+				return false;
+			}
+			for (int i = 0; i < end - start; i++) {
+				if (text[start + i] != slice.text[slice.start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes, 0, bytes.length);
+		offset += bytes.length;
+	}
+
+	private void writeInt(int value) throws IOException {
+		write(new byte[] { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value });
+	}
+
+	@Override
+	public void abort() throws IOException {
+		encoders.shutdownNow();
+		out.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (columns == null) {
+				throw new IOException("The table has no header line");
+			}
+			if (rowCount > 0) {
+				submitRowGroup();
+			}
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			final long footerOffset = offset;
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream footer = new DataOutputStream(bytes);
+			footer.writeInt(columns.length);
+			for (String column : columns) {
+				final byte[] name = column.getBytes(StandardCharsets.UTF_8);
+				footer.writeInt(name.length);
+				footer.write(name);
+			}
+			footer.writeInt(written.size());
+			for (RowGroup group : written) {
+				footer.writeInt(group.rowCount);
+				for (int c = 0; c < columns.length; c++) {
+					footer.writeByte(group.types[c]);
+					footer.writeLong(group.offsets[c]);
+					footer.writeInt(group.lengths[c]);
+				}
+			}
+			footer.writeLong(footerOffset);
+			footer.writeInt(MAGIC);
+			write(bytes.toByteArray());
+		} finally {
+			encoders.shutdownNow();
+			out.close();
+		}
+	}
+
+	private static class RowGroup {
+		final int rowCount;
+		final byte[] types;
+		byte[][] chunks;
+		long[] offsets;
+		int[] lengths;
+
+		RowGroup(int rowCount, int columnCount) {
+			this.rowCount = rowCount;
+			this.types = new byte[columnCount];
+			this.chunks = new byte[columnCount][];
+		}
+	}
+}
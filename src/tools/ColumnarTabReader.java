@@ -0,0 +1,138 @@
+package tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Reads the columns of a table that ColumnarTabOutput wrote, one row group at a time. Only the
+ * chunks of the columns that are asked for are read from the file.
+ */
+public class ColumnarTabReader implements AutoCloseable {
+	private final RandomAccessFile file;
+	private final String[] columns;
+	private final int[] rowCounts;
+	private final byte[][] types;
+	private final long[][] offsets;
+	private final int[][] lengths;
+
+	public ColumnarTabReader(File tableFile) throws IOException {
+		file = new RandomAccessFile(tableFile, "r");
+		file.seek(0);
+		if (file.readInt() != ColumnarTabOutput.MAGIC) {
+			throw new IOException(tableFile + " is not a columnar table");
+		}
+		file.seek(file.length() - 12);
+		final long footerOffset = file.readLong();
+		if (file.readInt() != ColumnarTabOutput.MAGIC) {
+			throw new IOException(tableFile + " is truncated");
+		}
+		final byte[] footerBytes = new byte[(int) (file.length() - 12 - footerOffset)];
+		file.seek(footerOffset);
+		file.readFully(footerBytes);
+		final DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBytes));
+		columns = new String[footer.readInt()];
+		for (int c = 0; c < columns.length; c++) {
+			columns[c] = readString(footer);
+		}
+		final int groups = footer.readInt();
+		rowCounts = new int[groups];
+		types = new byte[groups][columns.length];
+		offsets = new long[groups][columns.length];
+		lengths = new int[groups][columns.length];
+		for (int g = 0; g < groups; g++) {
+			rowCounts[g] = footer.readInt();
+			for (int c = 0; c < columns.length; c++) {
+				types[g][c] = footer.readByte();
+				offsets[g][c] = footer.readLong();
+				lengths[g][c] = footer.readInt();
+			}
+		}
+	}
+
+	public List<String> getColumnNames() {
+		return Arrays.asList(columns);
+	}
+
+	public int getRowGroupCount() {
+		return rowCounts.length;
+	}
+
+	public int getRowCount(int rowGroup) {
+		return rowCounts[rowGroup];
+	}
+
+	/**
+	 * @return the values of the column in the row group: an int[] for an INT chunk, a double[] for
+	 * a FLOAT chunk and a String[] for a STRING chunk
+	 */
+	public Object readColumn(int rowGroup, String column) throws IOException {
+		final int c = getColumnNames().indexOf(column);
+		if (c < 0) {
+			throw new IllegalArgumentException("No column " + column);
+		}
+		final byte[] compressed = new byte[lengths[rowGroup][c]];
+		file.seek(offsets[rowGroup][c]);
+		file.readFully(compressed);
+		final int rows = rowCounts[rowGroup];
+		try (DataInputStream chunk = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+			switch (types[rowGroup][c]) {
+			case ColumnarTabOutput.INT:
+				final int[] ints = new int[rows];
+				for (int r = 0; r < rows; r++) {
+					ints[r] = chunk.readInt();
+				}
+				return ints;
+			case ColumnarTabOutput.FLOAT:
+				final double[] doubles = new double[rows];
+				for (int r = 0; r < rows; r++) {
+					doubles[r] = chunk.readDouble();
+				}
+				return doubles;
+			case ColumnarTabOutput.STRING:
+				final String[] dictionary = new String[chunk.readInt()];
+				for (int i = 0; i < dictionary.length; i++) {
+					dictionary[i] = readString(chunk);
+				}
+				final String[] strings = new String[rows];
+				for (int r = 0; r < rows; r++) {
+					strings[r] = dictionary[chunk.readInt()];
+				}
+				return strings;
+			default:
+				throw new IOException("Unknown column type " + types[rowGroup][c]);
+			}
+		}
+	}
+
+	/**
+	 * @return the values of the column in the row group as they were in the text table
+	 */
+	public String[] readColumnAsStrings(int rowGroup, String column) throws IOException {
+		final Object values = readColumn(rowGroup, column);
+		if (values instanceof int[]) {
+			return Arrays.stream((int[]) values).mapToObj(Integer::toString).toArray(String[]::new);
+		}
+		if (values instanceof double[]) {
+			return Arrays.stream((double[]) values).mapToObj(Double::toString).toArray(String[]::new);
+		}
+		return (String[]) values;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
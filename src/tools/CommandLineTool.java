@@ -1,12 +1,65 @@
 package tools;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.Log;
 
 public class CommandLineTool {
+	/**
+	 * The work of a tool, run inside runTool.
+	 */
+	protected interface ToolBody {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Run a tool: log its arguments and the configuration, set up its input layer (see ReadAhead),
+	 * collect its metrics while the body runs, and at the end log the elapsed time and the metrics,
+	 * commit them as JFR events, and write them as JSON to the file of the --metrics option when
+	 * there is one.
+	 * @param options the parsed options of the tool
+	 */
+	protected static void runTool(Class<?> tool, String version, String[] args, Map<String, String> options, ToolBody body) throws IOException {
+		final Log log = Log.getInstance(tool);
+		final ToolMetrics metrics = new ToolMetrics(tool.getSimpleName(), version);
+		ToolMetrics.setCurrent(metrics);
+		ToolServer.started(metrics);
+		BatchRunner.started(metrics);
+		metrics.startHeapSampling();
+		boolean succeeded = false;
+		try {
+			log.info("Start with args:" + Arrays.toString(args));
+			printConfigurationInfo(version);
+			log.info("Input read ahead: " + ReadAhead.configure(options));
+			body.run();
+			succeeded = true;
+		} finally {
+			metrics.stopHeapSampling();
+			log.info("Metrics:" + metrics.summary());
+			metrics.commitEvents();
+			if (options.containsKey("--metrics")) {
+				metrics.writeJson(new File(options.get("--metrics")), args, succeeded);
+			}
+			ToolMetrics.clearCurrent();
+			ReadAhead.clearCurrent();
+			if (succeeded) {
+				log.info(String.format("Done. Elapsed time %.3f seconds", metrics.getElapsedSeconds()));
+			}
+		}
+	}
+
 	@SuppressWarnings("unused")
 	protected static void printConfigurationInfo(String version) {
 		final Log log = Log.getInstance(CommandLineTool.class);
@@ -27,4 +80,65 @@ public class CommandLineTool {
     	log.info(Defaults.allDefaults().entrySet().stream().map(e -> e.getKey() + ':' + e.getValue()).collect(Collectors.<String>joining(" ")));
     }
 
+    /**
+     * Stop after the usage has been printed: the JVM exits, unless the tool runs as a job of a
+     * ToolServer or a row of a BatchRunner, where only the job or the row fails.
+     */
+    protected static void exitWithUsage() {
+    	if (ToolServer.isJob() || BatchRunner.isRow()) {
+    		throw new IllegalArgumentException("Invalid arguments; see the usage");
+    	}
+    	System.exit(1);
+    }
+
+    /**
+     * Stop a pool of workers and wait until none of them runs: tasks that have not started are
+     * cancelled and running ones finish, without an interrupt, so that no worker is still using a
+     * reader when the caller closes it or hands it back to SharedReaders.
+     * @param futures the tasks submitted to the pool, done or not
+     */
+    protected static void stopWorkers(ExecutorService executor, Collection<? extends Future<?>> futures) {
+    	for (Future<?> future : futures) {
+    		future.cancel(false);
+    	}
+    	executor.shutdown();
+    	boolean interrupted = false;
+    	while (true) {
+    		try {
+    			if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+    				break;
+    			}
+    		} catch (InterruptedException e) {
+    			interrupted = true;
+    		}
+    	}
+    	if (interrupted) {
+    		Thread.currentThread().interrupt();
+    	}
+    }
+
+    /**
+     * Split the command line into positional arguments and "--name value" options.
+     * @param args the command line
+     * @param options receives the options, keyed by name including the leading dashes
+     * @param flags options that take no value; they are stored with the value "true"
+     * @return the positional arguments in order
+     */
+    protected static List<String> parseOptions(String[] args, Map<String, String> options, String... flags) {
+    	List<String> flagList = Arrays.asList(flags);
+    	List<String> positional = new ArrayList<String>();
+    	for (int i = 0; i < args.length; i++) {
+    		if (!args[i].startsWith("--")) {
+    			positional.add(args[i]);
+    		} else if (flagList.contains(args[i])) {
+    			options.put(args[i], "true");
+    		} else if (i + 1 < args.length) {
+    			options.put(args[i], args[++i]);
+    		} else {
+    			throw new IllegalArgumentException("Missing value for option " + args[i]);
+    		}
+    	}
+    	return positional;
+    }
+
 }
@@ -0,0 +1,32 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.util.Log;
+
+/*
+ * This program compiles a known sites VCF (e.g. dbSNP) into a compact store for SubtractVariants --known-sites
+ * Input: known sites VCF file
+ * Output: known sites store
+*/
+public class CompileKnownSites extends CommandLineTool {
+	private static String version = "16.12.12";
+	private static final Log log = Log.getInstance(CompileKnownSites.class);
+
+	public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options, "--no-bloom");
+        if (positional.size() != 2) {
+            System.out.println("Usage: " + CompileKnownSites.class.getCanonicalName() + " [--no-bloom] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] knownSitesVcf storeFile");
+            exitWithUsage();
+        }
+        final File vcfFile = new File(positional.get(0));
+        final File storeFile = new File(positional.get(1));
+
+        runTool(CompileKnownSites.class, version, args, options, () -> KnownSitesStore.compile(vcfFile, storeFile, !options.containsKey("--no-bloom")));
+	}
+}
@@ -0,0 +1,106 @@
+package tools;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/*
+ * Read counts and aligned bases in fixed size bins along every reference, for genome wide coverage
+ * without a BED file. Reads must arrive in coordinate order; the bins of one reference are held in
+ * primitive arrays and written out as soon as the reads move on to the next reference.
+ */
+public class CoverageBins {
+	public static final String HEADER = "chr\tstart\tend\tlength\treadCount\tcoverage\tmeanDepth";
+
+	private final SAMSequenceDictionary dictionary;
+	private final int binSize;
+	private final ReadFilter filter;
+	private final Writer out;
+	private final StringBuilder line = new StringBuilder(128);
+	private int reference = -1;
+	private int[] readCounts;
+	private long[] bases;
+
+	public CoverageBins(SAMSequenceDictionary dictionary, int binSize, ReadFilter filter, Writer out) {
+		if (binSize < 1) {
+			throw new IllegalArgumentException("Bin size must be at least 1: " + binSize);
+		}
+		this.dictionary = dictionary;
+		this.binSize = binSize;
+		this.filter = filter;
+		this.out = out;
+	}
+
+	/**
+	 * Count a read that has passed the read filter.
+	 */
+	public void add(SAMRecord rec) throws IOException {
+		if (rec.getReferenceIndex() != reference) {
+			if (rec.getReferenceIndex() < reference) {
+				throw new IllegalStateException("Reads are not coordinate sorted: " + rec.getReadName() + " at " + rec.getReferenceName() + ":" + rec.getAlignmentStart());
+			}
+			advanceTo(rec.getReferenceIndex());
+		}
+		final int first = (rec.getAlignmentStart() - 1) / binSize;
+		final int last = Math.min((rec.getAlignmentEnd() - 1) / binSize, readCounts.length - 1);
+		for (int bin = first; bin <= last; bin++) {
+			readCounts[bin]++;
+		}
+		filter.countedBases(rec, (start, end) -> {
+			end = Math.min(end, dictionary.getSequence(reference).getSequenceLength());
+			while (start <= end) {
+				final int bin = (start - 1) / binSize;
+				final int binEnd = Math.min((bin + 1) * binSize, end);
+				bases[bin] += binEnd - start + 1;
+				start = binEnd + 1;
+			}
+		});
+	}
+
+	/**
+	 * Write the bins of the remaining references.
+	 */
+	public void finish() throws IOException {
+		advanceTo(dictionary.size());
+	}
+
+	/* Write the current reference and any skipped ones, then start on the given reference.
+	 */
+	private void advanceTo(int nextReference) throws IOException {
+		if (reference >= 0) {
+			write(reference);
+		}
+		for (int skipped = reference + 1; skipped < nextReference; skipped++) {
+			allocate(skipped);
+			write(skipped);
+		}
+		reference = nextReference;
+		if (reference < dictionary.size()) {
+			allocate(reference);
+		}
+	}
+
+	private void allocate(int referenceIndex) {
+		final int length = dictionary.getSequence(referenceIndex).getSequenceLength();
+		final int binCount = (int) ((length + (long) binSize - 1) / binSize);
+		readCounts = new int[binCount];
+		bases = new long[binCount];
+	}
+
+	private void write(int referenceIndex) throws IOException {
+		final SAMSequenceRecord sequence = dictionary.getSequence(referenceIndex);
+		for (int bin = 0; bin < readCounts.length; bin++) {
+			final int start = bin * binSize + 1;
+			final int end = (int) Math.min((long) (bin + 1) * binSize, sequence.getSequenceLength());
+			final int length = end - start + 1;
+			line.setLength(0);
+			line.append(sequence.getSequenceName()).append('\t').append(start).append('\t').append(end).append('\t').append(length)
+				.append('\t').append(readCounts[bin]).append('\t').append(readCounts[bin] / (double) length)
+				.append('\t').append(bases[bin] / (double) length).append('\n');
+			out.append(line);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package tools;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Summary statistics of the per base depth of a target: the number of uncovered bases, the number
+ * of bases at or above each depth threshold and optionally the mean and median depth.
+ * The depths of all targets are also collected in a genome wide histogram.
+ *
+ * When only a fraction of the reads was sampled, the depths are scaled up by the fraction, and the
+ * mean depth of each target comes with a 95% confidence interval. Each read of a target is taken
+ * as adding the same number of bases, so the relative error of the mean is sqrt((1 - f) / n) for
+ * n reads sampled at fraction f. Both mates of a pair are sampled together, and a read counts in
+ * every target it overlaps, so where mates or targets overlap the interval is somewhat too narrow.
+ * The bases at each threshold are counted from the scaled depths, which only take multiples of
+ * 1 / f, so they are rough for small samples; the mean is the figure to judge a sample by.
+ */
+public class CoverageStats {
+	/* The thresholds reported when none are given on the command line */
+	public static final int[] DEFAULT_THRESHOLDS = { 10 };
+
+	private final int[] thresholds;
+	private final boolean reportMeanAndMedian;
+	// bases by depth; the last bin holds every depth at or above it
+	private final long[] histogram;
+	private final double sampleFraction;
+	// cleared histograms for single targets, taken by each format call while it runs
+	private final ConcurrentLinkedQueue<long[]> spareHistograms = new ConcurrentLinkedQueue<long[]>();
+	// the sampled reads, the scaled depths and the bases of all targets, for the overall estimate
+	private long sampledReads = 0;
+	private long totalDepth = 0;
+	private long totalBases = 0;
+
+	public CoverageStats(int[] thresholds, boolean reportMeanAndMedian, int maxHistogramDepth) {
+		this(thresholds, reportMeanAndMedian, maxHistogramDepth, 1.0);
+	}
+
+	/**
+	 * @param sampleFraction the fraction of the reads that were sampled, or 1 for all of them
+	 */
+	public CoverageStats(int[] thresholds, boolean reportMeanAndMedian, int maxHistogramDepth, double sampleFraction) {
+		for (int threshold : thresholds) {
+			if (threshold < 1) {
+				throw new IllegalArgumentException("Depth thresholds must be at least 1: " + threshold);
+			}
+		}
+		this.thresholds = thresholds.clone();
+		this.reportMeanAndMedian = reportMeanAndMedian;
+		this.histogram = new long[maxHistogramDepth + 1];
+		this.sampleFraction = sampleFraction;
+	}
+
+	/**
+	 * @return the depths of the sampled reads scaled up to depths of all reads, or the same depths
+	 * when all reads were counted
+	 */
+	public int[] scale(int[] sampledCoverage) {
+		if (sampleFraction >= 1) {
+			return sampledCoverage;
+		}
+		final int[] scaled = new int[sampledCoverage.length];
+		for (int i = 0; i < scaled.length; i++) {
+			scaled[i] = (int) Math.round(sampledCoverage[i] / sampleFraction);
+		}
+		return scaled;
+	}
+
+	/**
+	 * @return a count of sampled reads scaled up to a count of all reads
+	 */
+	public long scale(int sampledReads) {
+		return sampleFraction >= 1 ? sampledReads : Math.round(sampledReads / sampleFraction);
+	}
+
+	/**
+	 * Parse a comma separated list of depth thresholds such as "1,10,20,30".
+	 */
+	public static int[] parseThresholds(String thresholds) {
+		return Arrays.stream(thresholds.split(",")).map(String::trim).mapToInt(Integer::parseInt).sorted().distinct().toArray();
+	}
+
+	/**
+	 * @return the tab separated column names of the statistics
+	 */
+	public String getHeader() {
+		StringBuilder sb = new StringBuilder("totalBases0X");
+		for (int threshold : thresholds) {
+			sb.append("\ttotalBases").append(threshold).append('X');
+		}
+		if (reportMeanAndMedian) {
+			sb.append("\tmeanDepth\tmedianDepth");
+		}
+		if (sampleFraction < 1) {
+			sb.append("\tmeanDepthLow\tmeanDepthHigh");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compute the statistics of one target and add its depths to the histogram.
+	 * @return the tab separated statistics, in the order of the header
+	 */
+	public String format(int[] perBaseCoverage) {
+		return format(perBaseCoverage, 0);
+	}
+
+	/**
+	 * Compute the statistics of one target from its scaled depths and the number of reads sampled
+	 * in it, and add its depths to the histogram.
+	 * @return the tab separated statistics, in the order of the header
+	 */
+	public String format(int[] perBaseCoverage, int sampledReads) {
+		final int[] basesAtThreshold = new int[thresholds.length];
+		long[] localHistogram = spareHistograms.poll();
+		if (localHistogram == null) {
+			localHistogram = new long[histogram.length];
+		}
+		int maxBin = 0;
+		int totalBases0x = 0;
+		long totalDepth = 0;
+		for (int depth : perBaseCoverage) {
+			if (depth == 0) {
+				totalBases0x++;
+			}
+			for (int i = 0; i < thresholds.length && depth >= thresholds[i]; i++) {
+				basesAtThreshold[i]++;
+			}
+			totalDepth += depth;
+			final int bin = Math.min(depth, histogram.length - 1);
+			localHistogram[bin]++;
+			if (bin > maxBin) {
+				maxBin = bin;
+			}
+		}
+		synchronized (histogram) {
+			for (int i = 0; i <= maxBin; i++) {
+				histogram[i] += localHistogram[i];
+			}
+			this.sampledReads += sampledReads;
+			this.totalDepth += totalDepth;
+			this.totalBases += perBaseCoverage.length;
+		}
+
+		StringBuilder sb = new StringBuilder().append(totalBases0x);
+		for (int count : basesAtThreshold) {
+			sb.append('\t').append(count);
+		}
+		if (reportMeanAndMedian) {
+			sb.append('\t').append(totalDepth / (double) perBaseCoverage.length);
+			sb.append('\t').append(median(perBaseCoverage, localHistogram, maxBin));
+		}
+		Arrays.fill(localHistogram, 0, maxBin + 1, 0);
+		spareHistograms.offer(localHistogram);
+		if (sampleFraction < 1) {
+			final double[] interval = interval(totalDepth / (double) perBaseCoverage.length, sampledReads);
+			sb.append('\t').append(interval[0]).append('\t').append(interval[1]);
+		}
+		return sb.toString();
+	}
+
+	/* The 95% confidence interval of a mean depth estimated from n sampled reads; without reads
+	 * there is no upper bound.
+	 */
+	private double[] interval(double mean, long n) {
+		if (n == 0) {
+			return new double[] { 0, Double.NaN };
+		}
+		final double error = 1.96 * Math.sqrt((1 - sampleFraction) / n);
+		return new double[] { mean * Math.max(0, 1 - error), mean * (1 + error) };
+	}
+
+	/**
+	 * @return the mean depth of all targets so far and its confidence interval, for the log
+	 */
+	public String estimate() {
+		synchronized (histogram) {
+			final double mean = totalBases > 0 ? totalDepth / (double) totalBases : 0;
+			final double[] interval = interval(mean, sampledReads);
+			return String.format("mean depth of all targets %.2f, 95%% confidence interval %.2f to %.2f, from %d reads sampled at %s",
+					mean, interval[0], interval[1], sampledReads, sampleFraction);
+		}
+	}
+
+	/* The median depth, read from the histogram of the target. Only when it falls in the last bin,
+	 * which holds every depth from there up, are the depths sorted to find it.
+	 */
+	private static double median(int[] perBaseCoverage, long[] localHistogram, int maxBin) {
+		final int middle = perBaseCoverage.length / 2;
+		final int upper = depthAt(localHistogram, maxBin, middle);
+		if (upper == localHistogram.length - 1) {
+			final int[] sorted = perBaseCoverage.clone();
+			Arrays.sort(sorted);
+			return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+		}
+		return perBaseCoverage.length % 2 == 1 ? upper : (depthAt(localHistogram, maxBin, middle - 1) + upper) / 2.0;
+	}
+
+	/* The depth of the base at the given position in depth order.
+	 */
+	private static int depthAt(long[] localHistogram, int maxBin, long position) {
+		long bases = 0;
+		for (int depth = 0; depth < maxBin; depth++) {
+			bases += localHistogram[depth];
+			if (bases > position) {
+				return depth;
+			}
+		}
+		return maxBin;
+	}
+
+	/**
+	 * Write the histogram of all the depths seen so far as "depth\tbases" lines.
+	 */
+	public void writeHistogram(File histogramFile) throws FileNotFoundException {
+		PrintWriter writer = new PrintWriter(histogramFile);
+		writer.println("depth\tbases");
+		synchronized (histogram) {
+			for (int i = 0; i < histogram.length; i++) {
+				writer.println((i == histogram.length - 1 ? i + "+" : i) + "\t" + histogram[i]);
+			}
+		}
+		writer.close();
+	}
+}
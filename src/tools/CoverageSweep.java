@@ -0,0 +1,153 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+
+/*
+ * Sweep-line coverage over a set of BED targets.
+ * Targets are sorted by reference and start, reads are fed in coordinate order and every
+ * alignment block is credited to all targets that are active at that point. A target is
+ * reported to the listener as soon as the reads have moved past its end.
+ */
+public class CoverageSweep {
+
+	public interface Listener {
+		void targetDone(int target, int readCount, int[] perBaseCoverage);
+	}
+
+	private static class ActiveTarget {
+		final int target;
+		final int reference;
+		final DepthAccumulator depth;
+
+		ActiveTarget(int target, int reference, int start, int end) {
+			this.target = target;
+			this.reference = reference;
+			this.depth = new DepthAccumulator(start, end);
+		}
+
+		void done(Listener listener) {
+			listener.targetDone(target, depth.getReadCount(), depth.resolve());
+		}
+	}
+
+	private final int[] order;
+	private final int[] orderReference;
+	private final TargetSet targets;
+	private final ReadFilter filter;
+	private final Listener listener;
+	private final List<ActiveTarget> active = new ArrayList<ActiveTarget>();
+	private int next = 0;
+
+	/**
+	 * @param targets the targets; ids reported to the listener are target ids of this set
+	 * @param ids the ids of the targets to sweep, in any order
+	 * @param dictionary the sequence dictionary of the reads, which defines the reference order
+	 * @param filter decides which bases of a read are counted
+	 * @param listener receives every target exactly once
+	 */
+	public CoverageSweep(TargetSet targets, int[] ids, SAMSequenceDictionary dictionary, ReadFilter filter, Listener listener) {
+		this.targets = targets;
+		this.filter = filter;
+		this.listener = listener;
+		final int[] reference = Arrays.stream(ids).map(t -> dictionary.getSequenceIndex(targets.getContig(t))).toArray();
+		final Integer[] sorted = IntStream.range(0, ids.length).boxed().toArray(Integer[]::new);
+		Arrays.sort(sorted, Comparator.<Integer>comparingInt(i -> reference[i]).thenComparingInt(i -> targets.getStart(ids[i])));
+		this.order = Arrays.stream(sorted).mapToInt(i -> ids[i]).toArray();
+		this.orderReference = Arrays.stream(sorted).mapToInt(i -> reference[i]).toArray();
+	}
+
+	/**
+	 * Split the targets of one reference into chunks of roughly equal total length. Chunks are
+	 * cut between targets in start order, so every chunk can be swept on its own.
+	 * @param referenceTargets targets on a single reference, sorted by start
+	 * @param chunkLength the total target length to aim for per chunk
+	 */
+	public static List<int[]> chunk(TargetSet targets, int[] referenceTargets, long chunkLength) {
+		List<int[]> chunks = new ArrayList<int[]>();
+		int from = 0;
+		long length = 0;
+		for (int i = 0; i < referenceTargets.length; i++) {
+			length += targets.getLength(referenceTargets[i]);
+			if (length >= chunkLength || i == referenceTargets.length - 1) {
+				chunks.add(Arrays.copyOfRange(referenceTargets, from, i + 1));
+				from = i + 1;
+				length = 0;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Credit a read to the active targets. Reads must arrive in coordinate order and should already be filtered.
+	 */
+	public void add(SAMRecord rec) {
+		final int ref = rec.getReferenceIndex();
+		final int readStart = rec.getAlignmentStart();
+		final int readEnd = rec.getAlignmentEnd();
+
+		// retire the targets the reads have moved past
+		Iterator<ActiveTarget> iter = active.iterator();
+		while (iter.hasNext()) {
+			ActiveTarget t = iter.next();
+			if (t.reference < ref || t.depth.getEnd() < readStart) {
+				iter.remove();
+				t.done(listener);
+			}
+		}
+		// activate the targets that start at or before the end of this read
+		while (next < order.length) {
+			final int target = order[next];
+			final int reference = orderReference[next];
+			if (reference > ref || (reference == ref && targets.getStart(target) > readEnd)) {
+				break;
+			}
+			ActiveTarget t = new ActiveTarget(target, reference, targets.getStart(target), targets.getEnd(target));
+			if (reference < ref || t.depth.getEnd() < readStart) {
+				t.done(listener);
+			} else {
+				active.add(t);
+			}
+			next++;
+		}
+
+		for (ActiveTarget t : active) {
+			if (t.depth.getStart() > readEnd) {
+				continue;
+			}
+			filter.addToDepth(rec, t.depth);
+		}
+	}
+
+	/**
+	 * Report every target that has not been reported yet.
+	 */
+	public void finish() {
+		for (ActiveTarget t : active) {
+			t.done(listener);
+		}
+		active.clear();
+		for (; next < order.length; next++) {
+			listener.targetDone(order[next], 0, new int[targets.getLength(order[next])]);
+		}
+	}
+
+	/* The first and last base spanned by the targets, which must all be on one reference.
+	 */
+	public static int[] span(TargetSet targets, int[] ids) {
+		int start = Integer.MAX_VALUE;
+		int end = 0;
+		for (int target : ids) {
+			start = Math.min(start, targets.getStart(target));
+			end = Math.max(end, targets.getEnd(target));
+		}
+		return new int[] { start, end };
+	}
+}
@@ -0,0 +1,60 @@
+package tools;
+
+/*
+ * Accumulates the read depth over one target as a difference array. Every alignment block is
+ * recorded as a +1 at its (clipped) first base and a -1 after its last base, and the per base
+ * depth is resolved with a single prefix sum once all reads have been added.
+ */
+public class DepthAccumulator {
+	private final int start;
+	private final int end;
+	private final int[] delta;
+	private int readCount = 0;
+
+	public DepthAccumulator(int start, int end) {
+		this.start = start;
+		this.end = end;
+		this.delta = new int[end - start + 2];
+	}
+
+	public int getStart() {
+		return start;
+	}
+
+	public int getEnd() {
+		return end;
+	}
+
+	public int getReadCount() {
+		return readCount;
+	}
+
+	public void addRead() {
+		readCount++;
+	}
+
+	/**
+	 * Add one to the depth of every target base in [blockStart, blockEnd].
+	 */
+	public void addBlock(int blockStart, int blockEnd) {
+		final int from = Math.max(blockStart, start);
+		final int to = Math.min(blockEnd, end);
+		if (from <= to) {
+			delta[from - start]++;
+			delta[to - start + 1]--;
+		}
+	}
+
+	/**
+	 * @return the depth of every base of the target
+	 */
+	public int[] resolve() {
+		final int[] depth = new int[end - start + 1];
+		int running = 0;
+		for (int i = 0; i < depth.length; i++) {
+			running += delta[i];
+			depth[i] = running;
+		}
+		return depth;
+	}
+}
@@ -0,0 +1,159 @@
+package tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Random access to a binary per base depth track written by DepthTrackWriter.
+ * The file is memory mapped and region queries are answered straight from the mapped pages.
+ *
+ * Layout (big endian):
+ *   int magic, int version
+ *   the depths of each target, one fixed width value per base; the width (1, 2 or 4 bytes) is
+ *   the smallest that holds the deepest base of the target and every target starts 4-byte aligned
+ *   int contigCount, contigCount x UTF contig name
+ *   int targetCount, targetCount x (int contig, int start, int end, byte width, long offset)
+ *   long offset of the contig table, int magic
+ */
+public class DepthTrack implements AutoCloseable {
+	static final int MAGIC = 0x52474454; // "RGDT"
+	static final int VERSION = 1;
+
+	private static class ContigTargets {
+		int[] starts;
+		int[] ends;
+		int[] maxEnds;
+		byte[] widths;
+		long[] offsets;
+	}
+
+	private final MappedFile mapped;
+	private final Map<String, ContigTargets> contigs = new HashMap<String, ContigTargets>();
+
+	public DepthTrack(File trackFile) throws IOException {
+		mapped = new MappedFile(trackFile);
+		final long length = mapped.length();
+		// the index and trailer are not aligned, so each is read through the file in one piece
+		// rather than through the mapping
+		final RandomAccessFile file = mapped.getFile();
+		if (length < 20 || mapped.getInt(0) != MAGIC) {
+			throw new IOException("Not a depth track: " + trackFile);
+		}
+		final DataInputStream trailer = read(file, length - 12, length);
+		final long indexPosition = trailer.readLong();
+		if (trailer.readInt() != MAGIC) {
+			throw new IOException("Not a depth track: " + trackFile);
+		}
+		if (mapped.getInt(4) != VERSION) {
+			throw new IOException("Unsupported depth track version " + mapped.getInt(4) + " in " + trackFile);
+		}
+		if (indexPosition < 8 || indexPosition > length - 12) {
+			throw new IOException("Corrupt depth track index offset " + indexPosition + " in " + trackFile);
+		}
+		readIndex(read(file, indexPosition, length - 12));
+	}
+
+	/* The bytes of the file from one position up to another, to be parsed from memory.
+	 */
+	private static DataInputStream read(RandomAccessFile file, long from, long to) throws IOException {
+		final byte[] bytes = new byte[Math.toIntExact(to - from)];
+		file.seek(from);
+		file.readFully(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	private void readIndex(DataInputStream in) throws IOException {
+		final String[] names = new String[in.readInt()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = in.readUTF();
+		}
+		final Map<String, List<long[]>> byContig = new HashMap<String, List<long[]>>();
+		final int targetCount = in.readInt();
+		for (int i = 0; i < targetCount; i++) {
+			final String contig = names[in.readInt()];
+			final long[] target = { in.readInt(), in.readInt(), in.readByte(), in.readLong() };
+			byContig.computeIfAbsent(contig, c -> new ArrayList<long[]>()).add(target);
+		}
+		for (Map.Entry<String, List<long[]>> entry : byContig.entrySet()) {
+			final List<long[]> targets = entry.getValue();
+			targets.sort(Comparator.comparingLong(t -> t[0]));
+			final ContigTargets ct = new ContigTargets();
+			ct.starts = new int[targets.size()];
+			ct.ends = new int[targets.size()];
+			ct.maxEnds = new int[targets.size()];
+			ct.widths = new byte[targets.size()];
+			ct.offsets = new long[targets.size()];
+			for (int i = 0; i < targets.size(); i++) {
+				final long[] target = targets.get(i);
+				ct.starts[i] = (int) target[0];
+				ct.ends[i] = (int) target[1];
+				ct.maxEnds[i] = Math.max(ct.ends[i], i > 0 ? ct.maxEnds[i - 1] : 0);
+				ct.widths[i] = (byte) target[2];
+				ct.offsets[i] = target[3];
+			}
+			contigs.put(entry.getKey(), ct);
+		}
+	}
+
+	/**
+	 * @return the depth of every base of contig:start-end (1-based, inclusive); bases outside of
+	 *         all targets are -1
+	 */
+	public int[] query(String contig, int start, int end) {
+		final int[] depths = new int[end - start + 1];
+		Arrays.fill(depths, -1);
+		final ContigTargets ct = contigs.get(contig);
+		if (ct == null) {
+			return depths;
+		}
+		// the first target that may reach the query; maxEnds never decreases
+		int lo = 0;
+		int hi = ct.maxEnds.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (ct.maxEnds[mid] < start) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		for (int i = lo; i < ct.starts.length && ct.starts[i] <= end; i++) {
+			final int from = Math.max(start, ct.starts[i]);
+			final int to = Math.min(end, ct.ends[i]);
+			for (int pos = from; pos <= to; pos++) {
+				depths[pos - start] = getDepth(ct.offsets[i] + (long) (pos - ct.starts[i]) * ct.widths[i], ct.widths[i]);
+			}
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the depth at one base, or -1 if no target covers it
+	 */
+	public int getDepth(String contig, int position) {
+		return query(contig, position, position)[0];
+	}
+
+	private int getDepth(long position, int width) {
+		if (width == 1) {
+			return mapped.getByte(position);
+		} else if (width == 2) {
+			return mapped.getShort(position);
+		}
+		return mapped.getInt(position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapped.close();
+	}
+}
@@ -0,0 +1,83 @@
+package tools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writes the per base depth of every target to a binary depth track, see DepthTrack for the layout.
+ * Targets may be added in any order and from several threads.
+ */
+public class DepthTrackWriter {
+	private final DataOutputStream out;
+	private final Map<String, Integer> contigs = new LinkedHashMap<String, Integer>();
+	private final List<long[]> targets = new ArrayList<long[]>();
+	private long offset = 0;
+
+	public DepthTrackWriter(File file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(DepthTrack.MAGIC);
+		out.writeInt(DepthTrack.VERSION);
+		offset = 8;
+	}
+
+	/**
+	 * Add the depths of the bases start..end (1-based, inclusive) of a contig.
+	 */
+	public synchronized void add(String contig, int start, int end, int[] perBaseCoverage) throws IOException {
+		int max = 0;
+		for (int depth : perBaseCoverage) {
+			max = Math.max(max, depth);
+		}
+		final int width = max <= 0xff ? 1 : max <= 0xffff ? 2 : 4;
+		// keep every value aligned to its width, so no value straddles a mapped segment of the reader
+		while (offset % 4 != 0) {
+			out.writeByte(0);
+			offset++;
+		}
+		Integer contigId = contigs.get(contig);
+		if (contigId == null) {
+			contigId = contigs.size();
+			contigs.put(contig, contigId);
+		}
+		targets.add(new long[] { contigId, start, end, width, offset });
+		for (int depth : perBaseCoverage) {
+			if (width == 1) {
+				out.writeByte(depth);
+			} else if (width == 2) {
+				out.writeShort(depth);
+			} else {
+				out.writeInt(depth);
+			}
+		}
+		offset += (long) width * perBaseCoverage.length;
+	}
+
+	/**
+	 * Write the target index and close the file.
+	 */
+	public synchronized void close() throws IOException {
+		final long indexOffset = offset;
+		out.writeInt(contigs.size());
+		for (String contig : contigs.keySet()) {
+			out.writeUTF(contig);
+		}
+		out.writeInt(targets.size());
+		for (long[] target : targets) {
+			out.writeInt((int) target[0]);
+			out.writeInt((int) target[1]);
+			out.writeInt((int) target[2]);
+			out.writeByte((int) target[3]);
+			out.writeLong(target[4]);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(DepthTrack.MAGIC);
+		out.close();
+	}
+}
@@ -0,0 +1,216 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.AsciiFeatureCodec;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.FeatureCodec;
+import htsjdk.tribble.Tribble;
+import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.index.AbstractIndex;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
+import htsjdk.variant.vcf.AbstractVCFCodec;
+
+/*
+ * The feature indexes of all the tools. An index on disk next to its feature file (.idx, or .tbi
+ * for bgzipped files) is reused unless it is stale: older than the feature file, or recording a
+ * different file size. A missing or stale index is built on a background thread and written next
+ * to the file when the directory allows it. Plain files get a tribble index balanced for seek time,
+ * which is an interval tree when the features are large, and bgzipped files get a tabix index.
+ *
+ * Indexes are kept for the life of the process, so every reader of a file shares one instance,
+ * unless a capacity is set; then the least recently used indexes beyond it are dropped.
+ */
+public final class IndexManager {
+	private static final Log log = Log.getInstance(IndexManager.class);
+	private static final IndexManager instance = new IndexManager();
+
+	private static class Entry {
+		final long length;
+		final long lastModified;
+		final Future<Index> index;
+		volatile long lastUsed = System.nanoTime();
+
+		Entry(File featureFile, Future<Index> index) {
+			this.length = featureFile.length();
+			this.lastModified = featureFile.lastModified();
+			this.index = index;
+		}
+
+		boolean isCurrent(File featureFile) {
+			return length == featureFile.length() && lastModified == featureFile.lastModified();
+		}
+	}
+
+	private volatile int capacity = Integer.MAX_VALUE;
+
+	private final ConcurrentHashMap<File, Entry> indexes = new ConcurrentHashMap<File, Entry>();
+	// shared by all runs, so its threads inherit nothing from the run that created them
+	private final ExecutorService builder = Executors.newCachedThreadPool(ReadAhead.daemonThreads("IndexManager"));
+
+	private IndexManager() {
+	}
+
+	public static IndexManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param capacity the indexes to keep
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * Start loading or building the index of a feature file in the background, if that has not
+	 * already been done. The codec is used by the background thread and must not be shared.
+	 */
+	@SuppressWarnings("try")
+	public Future<Index> prefetch(File featureFile, FeatureCodec<?, ?> codec) {
+		final File key = featureFile.getAbsoluteFile();
+		// the time goes to the tool that asked for the index first, which also decides how the file is read
+		final ToolMetrics metrics = ToolMetrics.current();
+		final ReadAhead readAhead = ReadAhead.current();
+		final Entry used = indexes.compute(key, (file, entry) -> entry != null && entry.isCurrent(file) ? entry
+				: new Entry(file, builder.submit(() -> {
+					try (ToolMetrics.Timer timer = metrics.time(ToolMetrics.INDEX)) {
+						return loadOrBuild(file, codec, readAhead);
+					}
+				})));
+		used.lastUsed = System.nanoTime();
+		evict();
+		return used.index;
+	}
+
+	private void evict() {
+		while (indexes.size() > capacity) {
+			indexes.entrySet().stream().min((a, b) -> Long.compare(a.getValue().lastUsed, b.getValue().lastUsed))
+					.ifPresent(oldest -> indexes.remove(oldest.getKey(), oldest.getValue()));
+		}
+	}
+
+	/**
+	 * @return the index of a feature file, waiting for it to be loaded or built
+	 */
+	public Index getIndex(File featureFile, FeatureCodec<?, ?> codec) {
+		try {
+			return prefetch(featureFile, codec).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while indexing " + featureFile, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeIOException("Unable to index " + featureFile, e.getCause());
+		}
+	}
+
+	/**
+	 * Open a reader for queries on a feature file. Plain files are read with the shared index
+	 * instance; bgzipped files are read through their tabix index, which htsjdk loads itself.
+	 */
+	public <F extends Feature, S> AbstractFeatureReader<F, S> openIndexed(File featureFile, FeatureCodec<F, S> codec) {
+		final Index index = getIndex(featureFile, newCodecLike(codec));
+		if (AbstractFeatureReader.hasBlockCompressedExtension(featureFile)) {
+			return AbstractFeatureReader.getFeatureReader(featureFile.getAbsolutePath(), Tribble.tabixIndexFile(featureFile).getAbsolutePath(), codec, true);
+		}
+		return AbstractFeatureReader.getFeatureReader(featureFile.getAbsolutePath(), codec, index);
+	}
+
+	private static FeatureCodec<?, ?> newCodecLike(FeatureCodec<?, ?> codec) {
+		try {
+			return codec.getClass().getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot create another " + codec.getClass().getName(), e);
+		}
+	}
+
+	private static Index loadOrBuild(File featureFile, FeatureCodec<?, ?> codec, ReadAhead readAhead) throws IOException {
+		final boolean tabix = AbstractFeatureReader.hasBlockCompressedExtension(featureFile);
+		final File indexFile = tabix ? Tribble.tabixIndexFile(featureFile) : Tribble.indexFile(featureFile);
+
+		if (indexFile.canRead() && indexFile.lastModified() >= featureFile.lastModified()) {
+			log.info("Loading index from disk for index file -> " + indexFile);
+			final Index index = IndexFactory.loadIndex(indexFile.getAbsolutePath());
+			if (!(index instanceof AbstractIndex) || !((AbstractIndex) index).hasFileSize()
+					|| ((AbstractIndex) index).getIndexedFileSize() == featureFile.length()) {
+				return index;
+			}
+			log.info("Index file " + indexFile + " was made for a file of another size, rebuilding it");
+		} else if (indexFile.exists()) {
+			log.info("Index file " + indexFile + " is older than " + featureFile + ", rebuilding it");
+		}
+
+		log.info("Creating the index in memory, then writing to disk for index file -> " + indexFile);
+		final Index index = tabix ? buildTabixIndex(featureFile, codec, readAhead)
+				: IndexFactory.createDynamicIndex(featureFile, codec, IndexFactory.IndexBalanceApproach.FOR_SEEK_TIME);
+		try {
+			index.writeBasedOnFeatureFile(featureFile);
+		} catch (IOException | RuntimeIOException e) {
+			// a read-only directory only costs the next run another build
+			log.warn("Unable to write index file " + indexFile + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	/* Build a tabix index from the virtual file pointers of the lines of a bgzipped file, which is
+	 * what the index records; htsjdk's own tabix indexer records positions in the uncompressed data.
+	 */
+	private static Index buildTabixIndex(File featureFile, FeatureCodec<?, ?> codec, ReadAhead readAhead) throws IOException {
+		if (!(codec instanceof AsciiFeatureCodec)) {
+			throw new IllegalArgumentException("No tabix index for " + codec.getClass().getSimpleName() + " files");
+		}
+		final AsciiFeatureCodec<?> asciiCodec = (AsciiFeatureCodec<?>) codec;
+		final TabixIndexCreator creator = new TabixIndexCreator(tabixFormat(codec));
+		try (BlockCompressedInputStream in = new BlockCompressedInputStream(readAhead.openSeekable(featureFile))) {
+			final List<String> headerLines = new ArrayList<String>();
+			long position = 0;
+			String line;
+			while ((line = in.readLine()) != null && line.startsWith("#")) {
+				headerLines.add(line);
+				position = in.getFilePointer();
+			}
+			asciiCodec.readActualHeader(new LineIteratorImpl(new SynchronousLineReader(new StringReader(String.join("\n", headerLines)))));
+			while (line != null) {
+				final Feature feature = asciiCodec.decode(line);
+				if (feature != null) {
+					creator.addFeature(feature, position);
+				}
+				position = in.getFilePointer();
+				line = in.readLine();
+			}
+			return creator.finalizeIndex(position);
+		}
+	}
+
+	private static TabixFormat tabixFormat(FeatureCodec<?, ?> codec) {
+		if (codec instanceof AbstractVCFCodec) {
+			return TabixFormat.VCF;
+		}
+		if (codec instanceof BEDCodec) {
+			return TabixFormat.BED;
+		}
+		throw new IllegalArgumentException("No tabix format for " + codec.getClass().getSimpleName() + " files");
+	}
+}
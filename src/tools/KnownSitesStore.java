@@ -0,0 +1,415 @@
+package tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import htsjdk.samtools.util.Log;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.readers.LineIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFCodec;
+
+/*
+ * A compact, memory mapped store of known variant sites, compiled once from a known sites VCF
+ * such as dbSNP so that later runs never parse that VCF again.
+ *
+ * Every contig holds its record starts in sorted order with the running maximum of the record
+ * ends, which answers "does any known record overlap start-end" with one binary search, and the
+ * sorted 64-bit hashes of its normalized ref/alt alleles for exact allele lookups. An optional
+ * Bloom filter per contig, over both the covered positions and the allele hashes, lets most
+ * novel variants skip the binary searches.
+ *
+ * Layout (big endian, every array aligned to 8 bytes):
+ *   int magic, int version
+ *   per contig: int[] starts, int[] maxEnds, long[] alleleKeys, long[] bloomBits
+ *   int contigCount, contigCount x (UTF name, int records, long startsOffset, long maxEndsOffset,
+ *       int keys, long keysOffset, int bloomWords, long bloomOffset)
+ *   long offset of the contig table, int magic
+ */
+public class KnownSitesStore implements AutoCloseable {
+	private static final Log log = Log.getInstance(KnownSitesStore.class);
+	static final int MAGIC = 0x52474b53; // "RGKS"
+	static final int VERSION = 1;
+	private static final int BLOOM_BITS_PER_ELEMENT = 10;
+	private static final int BLOOM_HASHES = 7;
+	private static final long POSITION_SALT = 0x9e3779b97f4a7c15L;
+	// queries longer than this skip the Bloom filter rather than probe every base
+	private static final int MAX_BLOOM_QUERY_SPAN = 32;
+
+	private static class Contig {
+		int records;
+		long startsOffset;
+		long maxEndsOffset;
+		int keys;
+		long keysOffset;
+		int bloomWords;
+		long bloomOffset;
+	}
+
+	private final MappedFile mapped;
+	private final Map<String, Contig> contigs = new HashMap<String, Contig>();
+
+	public KnownSitesStore(File storeFile) throws IOException {
+		mapped = new MappedFile(storeFile);
+		// the contig table and trailer are read through the file in one piece each, and parsed from memory
+		final RandomAccessFile file = mapped.getFile();
+		final long length = mapped.length();
+		if (length < 20 || mapped.getInt(0) != MAGIC) {
+			throw new IOException("Not a known sites store: " + storeFile);
+		}
+		final DataInputStream trailer = read(file, length - 12, length);
+		final long tablePosition = trailer.readLong();
+		if (trailer.readInt() != MAGIC) {
+			throw new IOException("Not a known sites store: " + storeFile);
+		}
+		if (mapped.getInt(4) != VERSION) {
+			throw new IOException("Unsupported known sites store version " + mapped.getInt(4) + " in " + storeFile);
+		}
+		if (tablePosition < 8 || tablePosition > length - 12) {
+			throw new IOException("Corrupt known sites store table offset " + tablePosition + " in " + storeFile);
+		}
+		final DataInputStream in = read(file, tablePosition, length - 12);
+		final int contigCount = in.readInt();
+		for (int i = 0; i < contigCount; i++) {
+			final String name = in.readUTF();
+			final Contig contig = new Contig();
+			contig.records = in.readInt();
+			contig.startsOffset = in.readLong();
+			contig.maxEndsOffset = in.readLong();
+			contig.keys = in.readInt();
+			contig.keysOffset = in.readLong();
+			contig.bloomWords = in.readInt();
+			contig.bloomOffset = in.readLong();
+			contigs.put(name, contig);
+		}
+	}
+
+	/* The bytes of the file from one position up to another.
+	 */
+	private static DataInputStream read(RandomAccessFile file, long from, long to) throws IOException {
+		final byte[] bytes = new byte[Math.toIntExact(to - from)];
+		file.seek(from);
+		file.readFully(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	/**
+	 * @return true if any known record overlaps contig:start-end
+	 */
+	public boolean overlaps(String contig, int start, int end) {
+		final Contig c = contigs.get(contig);
+		if (c == null || c.records == 0) {
+			return false;
+		}
+		if (c.bloomWords > 0 && end - start < MAX_BLOOM_QUERY_SPAN) {
+			boolean maybe = false;
+			for (int pos = start; pos <= end && !maybe; pos++) {
+				maybe = mightContain(c, positionKey(pos));
+			}
+			if (!maybe) {
+				return false;
+			}
+		}
+		// the last record that starts at or before the end of the query
+		final int last = lastStartAtOrBefore(c, end);
+		return last >= 0 && mapped.getInt(c.maxEndsOffset + 4L * last) >= start;
+	}
+
+	/**
+	 * @return true if a known record starts at the position
+	 */
+	public boolean hasStart(String contig, int position) {
+		final Contig c = contigs.get(contig);
+		if (c == null || c.records == 0) {
+			return false;
+		}
+		final int last = lastStartAtOrBefore(c, position);
+		return last >= 0 && mapped.getInt(c.startsOffset + 4L * last) == position;
+	}
+
+	/**
+	 * @return true if a known record has this alternate allele at this position, after both are normalized
+	 */
+	public boolean hasAllele(String contig, int position, String ref, String alt) {
+		final Contig c = contigs.get(contig);
+		if (c == null || c.keys == 0) {
+			return false;
+		}
+		final long key = alleleKey(position, ref, alt);
+		if (c.bloomWords > 0 && !mightContain(c, key)) {
+			return false;
+		}
+		int lo = 0;
+		int hi = c.keys - 1;
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			final long value = mapped.getLong(c.keysOffset + 8L * mid);
+			if (value < key) {
+				lo = mid + 1;
+			} else if (value > key) {
+				hi = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int lastStartAtOrBefore(Contig c, int position) {
+		int lo = 0;
+		int hi = c.records;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (mapped.getInt(c.startsOffset + 4L * mid) <= position) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo - 1;
+	}
+
+	private boolean mightContain(Contig c, long key) {
+		final long bits = 64L * c.bloomWords;
+		final long h1 = key;
+		final long h2 = mix(key ^ POSITION_SALT) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			if ((mapped.getLong(c.bloomOffset + 8L * (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void addToBloom(long[] bloom, long key) {
+		final long bits = 64L * bloom.length;
+		final long h1 = key;
+		final long h2 = mix(key ^ POSITION_SALT) | 1;
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			final long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+			bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapped.close();
+	}
+
+	/* A 64-bit finalizer (from MurmurHash3) that spreads the bits of the key.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long positionKey(int position) {
+		return mix(position * POSITION_SALT);
+	}
+
+	/**
+	 * The hash of an alternate allele after normalization: the bases shared at the end and then at
+	 * the start of ref and alt are trimmed, keeping at least one base in each, and the position
+	 * moves past the trimmed leading bases.
+	 */
+	public static long alleleKey(int position, String ref, String alt) {
+		int refEnd = ref.length();
+		int altEnd = alt.length();
+		while (refEnd > 1 && altEnd > 1 && Character.toUpperCase(ref.charAt(refEnd - 1)) == Character.toUpperCase(alt.charAt(altEnd - 1))) {
+			refEnd--;
+			altEnd--;
+		}
+		int from = 0;
+		while (from < refEnd - 1 && from < altEnd - 1 && Character.toUpperCase(ref.charAt(from)) == Character.toUpperCase(alt.charAt(from))) {
+			from++;
+		}
+		long h = 0xcbf29ce484222325L;
+		h = (h ^ (position + from)) * 0x100000001b3L;
+		for (int i = from; i < refEnd; i++) {
+			h = (h ^ Character.toUpperCase(ref.charAt(i))) * 0x100000001b3L;
+		}
+		h = (h ^ '>') * 0x100000001b3L;
+		for (int i = from; i < altEnd; i++) {
+			h = (h ^ Character.toUpperCase(alt.charAt(i))) * 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Compile a known sites VCF into a store. The VCF is read sequentially and must have the
+	 * records of each contig together; each contig is held in memory only while it is read.
+	 */
+	public static void compile(File vcfFile, File storeFile, boolean bloom) throws IOException {
+		final AbstractFeatureReader<VariantContext, LineIterator> reader = ReadAhead.current().openFeatures(vcfFile, new VCFCodec());
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile), 1 << 20));
+		final long[] offset = { 0 };
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		offset[0] = 8;
+
+		final List<String> names = new ArrayList<String>();
+		final List<Contig> written = new ArrayList<Contig>();
+		final Set<String> seen = new HashSet<String>();
+		String contig = null;
+		IntList starts = new IntList();
+		IntList ends = new IntList();
+		LongList keys = new LongList();
+		long records = 0;
+		Iterator<VariantContext> iter = reader.iterator();
+		while (true) {
+			final VariantContext vc = iter.hasNext() ? iter.next() : null;
+			if (vc == null || !vc.getContig().equals(contig)) {
+				if (contig != null) {
+					names.add(contig);
+					written.add(writeContig(out, offset, starts, ends, keys, bloom));
+					starts = new IntList();
+					ends = new IntList();
+					keys = new LongList();
+				}
+				if (vc == null) {
+					break;
+				}
+				contig = vc.getContig();
+				if (!seen.add(contig)) {
+					throw new IllegalStateException("Records of " + contig + " are not together in " + vcfFile);
+				}
+			}
+			starts.add(vc.getStart());
+			ends.add(vc.getEnd());
+			for (Allele alt : vc.getAlternateAlleles()) {
+				if (!alt.isSymbolic()) {
+					keys.add(alleleKey(vc.getStart(), vc.getReference().getBaseString(), alt.getBaseString()));
+				}
+			}
+			records++;
+		}
+		reader.close();
+
+		final long indexOffset = offset[0];
+		out.writeInt(names.size());
+		for (int i = 0; i < names.size(); i++) {
+			final Contig c = written.get(i);
+			out.writeUTF(names.get(i));
+			out.writeInt(c.records);
+			out.writeLong(c.startsOffset);
+			out.writeLong(c.maxEndsOffset);
+			out.writeInt(c.keys);
+			out.writeLong(c.keysOffset);
+			out.writeInt(c.bloomWords);
+			out.writeLong(c.bloomOffset);
+		}
+		out.writeLong(indexOffset);
+		out.writeInt(MAGIC);
+		out.close();
+		log.info("Compiled " + records + " records on " + names.size() + " contigs into " + storeFile);
+	}
+
+	private static Contig writeContig(DataOutputStream out, long[] offset, IntList starts, IntList ends, LongList keys, boolean bloom) throws IOException {
+		// sort the records by start, carrying their ends along
+		final long[] records = new long[starts.size];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = ((long) starts.values[i] << 32) | (ends.values[i] & 0xffffffffL);
+		}
+		Arrays.sort(records);
+		final long[] sortedKeys = Arrays.copyOf(keys.values, keys.size);
+		Arrays.sort(sortedKeys);
+
+		final Contig c = new Contig();
+		c.records = records.length;
+		c.keys = sortedKeys.length;
+		c.startsOffset = align(out, offset);
+		for (long record : records) {
+			out.writeInt((int) (record >> 32));
+		}
+		offset[0] += 4L * records.length;
+		c.maxEndsOffset = align(out, offset);
+		int maxEnd = 0;
+		for (long record : records) {
+			maxEnd = Math.max(maxEnd, (int) record);
+			out.writeInt(maxEnd);
+		}
+		offset[0] += 4L * records.length;
+		c.keysOffset = align(out, offset);
+		for (long key : sortedKeys) {
+			out.writeLong(key);
+		}
+		offset[0] += 8L * sortedKeys.length;
+
+		if (bloom) {
+			long covered = 0;
+			for (long record : records) {
+				covered += Math.max(1, (int) record - (int) (record >> 32) + 1);
+			}
+			final long[] bits = new long[(int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, (covered + sortedKeys.length) * BLOOM_BITS_PER_ELEMENT / 64 + 1))];
+			for (long record : records) {
+				final int start = (int) (record >> 32);
+				final int end = Math.max(start, (int) record);
+				for (int pos = start; pos <= end; pos++) {
+					addToBloom(bits, positionKey(pos));
+				}
+			}
+			for (long key : sortedKeys) {
+				addToBloom(bits, key);
+			}
+			c.bloomWords = bits.length;
+			c.bloomOffset = align(out, offset);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+			offset[0] += 8L * bits.length;
+		}
+		return c;
+	}
+
+	private static long align(DataOutputStream out, long[] offset) throws IOException {
+		while (offset[0] % 8 != 0) {
+			out.writeByte(0);
+			offset[0]++;
+		}
+		return offset[0];
+	}
+
+	private static class IntList {
+		int[] values = new int[1024];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+	}
+
+	private static class LongList {
+		long[] values = new long[1024];
+		int size = 0;
+
+		void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+	}
+}
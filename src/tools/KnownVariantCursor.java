@@ -0,0 +1,103 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.Log;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/*
+ * Merge-join of coordinate sorted query variants against a coordinate sorted stream of known
+ * variants. Both sides advance in lockstep, so each file is read sequentially exactly once.
+ * Reference order comes from the sequence dictionary; any record out of that order on either
+ * side fails the run instead of silently missing overlaps. Known variants on contigs that are not
+ * in the dictionary cannot overlap a query and are skipped.
+ */
+public class KnownVariantCursor {
+	private static final Log log = Log.getInstance(KnownVariantCursor.class);
+
+	private final Iterator<VariantContext> known;
+	private final SAMSequenceDictionary dictionary;
+	private final String knownSource;
+	// the known variants that start at or before the last query end and may still overlap a query
+	private final List<VariantContext> window = new ArrayList<VariantContext>();
+	// the contigs of known variants that were skipped, each warned about once
+	private final Set<String> skippedContigs = new HashSet<String>();
+	private VariantContext next;
+	private int nextReference;
+	private int lastKnownReference = -1;
+	private int lastKnownStart = 0;
+	private int queryReference = -1;
+	private int queryStart = 0;
+
+	public KnownVariantCursor(Iterator<VariantContext> known, SAMSequenceDictionary dictionary, String knownSource) {
+		this.known = known;
+		this.dictionary = dictionary;
+		this.knownSource = knownSource;
+		advance();
+	}
+
+	private int referenceIndex(VariantContext vc, String source) {
+		final int index = dictionary.getSequenceIndex(vc.getContig());
+		if (index < 0) {
+			throw new IllegalStateException("Contig " + vc.getContig() + " of " + source + " is not in the sequence dictionary");
+		}
+		return index;
+	}
+
+	private void advance() {
+		do {
+			if (!known.hasNext()) {
+				next = null;
+				return;
+			}
+			next = known.next();
+			nextReference = dictionary.getSequenceIndex(next.getContig());
+			if (nextReference < 0 && skippedContigs.add(next.getContig())) {
+				log.warn("Contig " + next.getContig() + " of " + knownSource + " is not in the sequence dictionary. Skipping its variants...");
+			}
+		} while (nextReference < 0);
+		if (nextReference < lastKnownReference || (nextReference == lastKnownReference && next.getStart() < lastKnownStart)) {
+			throw new IllegalStateException(knownSource + " is not sorted: " + next.getContig() + ":" + next.getStart()
+					+ " comes after " + dictionary.getSequence(lastKnownReference).getSequenceName() + ":" + lastKnownStart);
+		}
+		lastKnownReference = nextReference;
+		lastKnownStart = next.getStart();
+	}
+
+	/**
+	 * @return the known variants that overlap the query. Queries must come in coordinate order.
+	 */
+	public List<VariantContext> overlapping(VariantContext vc, String querySource) {
+		final int reference = referenceIndex(vc, querySource);
+		if (reference < queryReference || (reference == queryReference && vc.getStart() < queryStart)) {
+			throw new IllegalStateException(querySource + " is not sorted: " + vc.getContig() + ":" + vc.getStart()
+					+ " comes after " + dictionary.getSequence(queryReference).getSequenceName() + ":" + queryStart);
+		}
+		if (reference != queryReference) {
+			window.clear();
+		}
+		queryReference = reference;
+		queryStart = vc.getStart();
+
+		// later queries start at or after this one, so known variants that end before it are done with
+		window.removeIf(k -> k.getEnd() < vc.getStart());
+		while (next != null && (nextReference < reference || (nextReference == reference && next.getStart() <= vc.getEnd()))) {
+			if (nextReference == reference && next.getEnd() >= vc.getStart()) {
+				window.add(next);
+			}
+			advance();
+		}
+		final List<VariantContext> overlapping = new ArrayList<VariantContext>();
+		for (VariantContext k : window) {
+			if (k.getStart() <= vc.getEnd()) {
+				overlapping.add(k);
+			}
+		}
+		return overlapping;
+	}
+}
@@ -0,0 +1,82 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A read only, memory mapped file of any size, mapped in 1 GB segments. Values are big endian.
+ * Writers keep every value aligned to its width, so that no value straddles two segments.
+ */
+public class MappedFile implements AutoCloseable {
+	private static final int SEGMENT_BITS = 30;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] segments;
+	private final long length;
+
+	public MappedFile(File mappedFile) throws IOException {
+		file = new RandomAccessFile(mappedFile, "r");
+		final FileChannel channel = file.getChannel();
+		length = channel.size();
+		segments = new MappedByteBuffer[(int) ((length >>> SEGMENT_BITS) + 1)];
+		for (int i = 0; i < segments.length; i++) {
+			final long position = (long) i << SEGMENT_BITS;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(1L << SEGMENT_BITS, length - position));
+		}
+	}
+
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * The underlying file, for reading the parts that are not accessed through the mapping.
+	 */
+	public RandomAccessFile getFile() {
+		return file;
+	}
+
+	public int getByte(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK)) & 0xff;
+	}
+
+	public int getShort(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getShort((int) (position & SEGMENT_MASK)) & 0xffff;
+	}
+
+	public int getInt(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getInt((int) (position & SEGMENT_MASK));
+	}
+
+	public long getLong(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Copy bytes out of the mapping; unlike single values, a run of bytes may straddle segments.
+	 */
+	public void get(long position, byte[] buffer, int offset, int length) {
+		while (length > 0) {
+			final MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+			final int start = (int) (position & SEGMENT_MASK);
+			final int n = Math.min(length, segment.limit() - start);
+			// a duplicate has a position of its own, so readers of one mapping do not interfere
+			final ByteBuffer view = segment.duplicate();
+			view.position(start);
+			view.get(buffer, offset, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,36 @@
+package tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * The table as uncompressed text, written straight to a FileChannel.
+ */
+public class PlainTabOutput implements TabOutput {
+	private final FileChannel channel;
+
+	public PlainTabOutput(File outputFile) throws IOException {
+		this.channel = new FileOutputStream(outputFile).getChannel();
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		final ByteBuffer out = ByteBuffer.wrap(bytes, offset, length);
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+	}
+
+	@Override
+	public void abort() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,82 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.tribble.index.Index;
+import htsjdk.variant.vcf.VCFHeader;
+
+/*
+ * The queries that cover a set of BED targets: targets are sorted by contig and start, and targets
+ * that overlap, touch or lie within a gap of each other are merged into one block that is read
+ * with a single query. Each block keeps the ids of the targets it covers so that records can be
+ * credited back to the original targets.
+ */
+public class QueryPlan {
+	public static class Block {
+		public final String contig;
+		public final int start;
+		public final int end;
+		// target ids, sorted by start
+		public final int[] targets;
+
+		Block(String contig, int start, int end, int[] targets) {
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+			this.targets = targets;
+		}
+	}
+
+	private QueryPlan() {
+	}
+
+	/**
+	 * @param contigOrder the order the blocks come in; targets on other contigs are left out
+	 * @param gap the largest number of bases between two targets that still share a block
+	 * @return the blocks in contig order, then by start
+	 */
+	public static List<Block> plan(TargetSet targets, SAMSequenceDictionary contigOrder, int gap) {
+		final List<Block> blocks = new ArrayList<Block>();
+		for (int[] reference : targets.targetsByReference(contigOrder)) {
+			int first = 0;
+			int start = targets.getStart(reference[0]);
+			int end = targets.getEnd(reference[0]);
+			for (int i = 1; i <= reference.length; i++) {
+				if (i < reference.length && (long) targets.getStart(reference[i]) <= (long) end + 1 + gap) {
+					end = Math.max(end, targets.getEnd(reference[i]));
+					continue;
+				}
+				blocks.add(new Block(targets.getContig(reference[first]), start, end, Arrays.copyOfRange(reference, first, i)));
+				if (i < reference.length) {
+					first = i;
+					start = targets.getStart(reference[i]);
+					end = targets.getEnd(reference[i]);
+				}
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * @return the contig order of a VCF: its ##contig lines, followed by any other contigs of its
+	 *         index in the order of the index
+	 */
+	public static SAMSequenceDictionary contigOrder(VCFHeader header, Index index) {
+		final SAMSequenceDictionary order = new SAMSequenceDictionary();
+		if (header.getSequenceDictionary() != null) {
+			for (SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+				order.addSequence(new SAMSequenceRecord(sequence.getSequenceName(), sequence.getSequenceLength()));
+			}
+		}
+		for (String contig : index.getSequenceNames()) {
+			if (order.getSequence(contig) == null) {
+				order.addSequence(new SAMSequenceRecord(contig, 0));
+			}
+		}
+		return order;
+	}
+}
@@ -0,0 +1,305 @@
+package tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.Block;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.vcf.VCFCodec;
+
+/*
+ * Region queries on an indexed VCF that hand out the original lines instead of decoded records.
+ * Only CHROM, POS, REF and the END key of INFO are parsed, which is all it takes to place a record;
+ * the line itself is kept as bytes so it can be copied to the output unchanged.
+ *
+ * Plain files are read from the blocks of their tribble index, bgzipped files through tabix. The
+ * indexes come from the IndexManager.
+ */
+public class RawVariantReader implements Closeable {
+	private final File vcfFile;
+	private final Index index;
+	private final SeekableStream file;
+	private final TabixReader tabix;
+	// the lines of the plain file, kept from query to query for its buffer
+	private final LineReader lines = new LineReader();
+
+	/*
+	 * A VCF line and where it lies.
+	 */
+	public static class RawVariant implements Feature {
+		private final String contig;
+		private final int start;
+		private final int end;
+		private final byte[] line;
+
+		RawVariant(String contig, int start, int end, byte[] line) {
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+			this.line = line;
+		}
+
+		@Override
+		public String getContig() {
+			return contig;
+		}
+
+		@Override
+		@Deprecated
+		public String getChr() {
+			return contig;
+		}
+
+		@Override
+		public int getStart() {
+			return start;
+		}
+
+		@Override
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * @return the line as it is in the file, without its line break
+		 */
+		public byte[] getLine() {
+			return line;
+		}
+	}
+
+	public RawVariantReader(File vcfFile) throws IOException {
+		this.vcfFile = vcfFile;
+		this.index = IndexManager.getInstance().getIndex(vcfFile, new VCFCodec());
+		if (AbstractFeatureReader.hasBlockCompressedExtension(vcfFile)) {
+			file = null;
+			tabix = new TabixReader(vcfFile.getAbsolutePath());
+		} else {
+			file = ReadAhead.current().openSeekable(vcfFile);
+			tabix = null;
+		}
+	}
+
+	/**
+	 * @return the header lines of a VCF, each with its line break
+	 */
+	public static byte[] readHeader(File vcfFile) throws IOException {
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (InputStream in = AbstractFeatureReader.hasBlockCompressedExtension(vcfFile) ? new BlockCompressedInputStream(vcfFile)
+				: new FileInputStream(vcfFile)) {
+			final LineReader lines = new LineReader();
+			lines.reset(in);
+			byte[] line;
+			while ((line = lines.readLine()) != null && line.length > 0 && line[0] == '#') {
+				header.write(line);
+				header.write('\n');
+			}
+		}
+		return header.toByteArray();
+	}
+
+	/**
+	 * @return the records that overlap contig:start-end, in file order. The iterator reads as it
+	 *         goes and is only valid until the next query.
+	 */
+	public Iterator<RawVariant> query(String contig, int start, int end) throws IOException {
+		if (tabix != null) {
+			final int tid = tabix.chr2tid(contig);
+			final TabixReader.Iterator lines = tid >= 0 ? tabix.query(tid, start - 1, end) : null;
+			return new RecordIterator() {
+				@Override
+				RawVariant computeNext() throws IOException {
+					String line;
+					while (lines != null && (line = lines.next()) != null) {
+						final RawVariant record = parse(line.getBytes(StandardCharsets.UTF_8));
+						if (record != null && record.start <= end && record.end >= start) {
+							return record;
+						}
+					}
+					return null;
+				}
+			};
+		}
+
+		final Iterator<Block> blocks = index.containsChromosome(contig) ? index.getBlocks(contig, start, end).iterator() : null;
+		return new RecordIterator() {
+			// blocks may overlap one another; each byte of the file is read at most once
+			private long position = 0;
+			private boolean reading = false;
+
+			@Override
+			RawVariant computeNext() throws IOException {
+				while (true) {
+					if (!reading) {
+						if (blocks == null || !blocks.hasNext()) {
+							return null;
+						}
+						position = Math.max(blocks.next().getStartPosition(), position);
+						file.seek(position);
+						lines.reset(file);
+						reading = true;
+					}
+					final byte[] line = lines.readLine();
+					if (line == null) {
+						reading = false;
+						continue;
+					}
+					position += line.length + 1;
+					final RawVariant record = parse(line);
+					if (record == null) {
+						continue;
+					}
+					if (!record.contig.equals(contig) || record.start > end) {
+						reading = false;
+						continue;
+					}
+					if (record.end >= start) {
+						return record;
+					}
+				}
+			}
+		};
+	}
+
+	private static abstract class RecordIterator implements Iterator<RawVariant> {
+		private RawVariant next;
+		private boolean done = false;
+
+		abstract RawVariant computeNext() throws IOException;
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					next = computeNext();
+				} catch (IOException e) {
+					throw new RuntimeIOException(e);
+				}
+				done = next == null;
+			}
+			return next != null;
+		}
+
+		@Override
+		public RawVariant next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final RawVariant record = next;
+			next = null;
+			return record;
+		}
+	}
+
+	/* The lines of a stream, found by scanning a buffer that is reused for stream after stream.
+	 */
+	private static class LineReader {
+		private InputStream in;
+		private byte[] buffer = new byte[1 << 16];
+		private int position = 0;
+		private int limit = 0;
+
+		/* Read the lines of another stream from its current position.
+		 */
+		void reset(InputStream in) {
+			this.in = in;
+			position = 0;
+			limit = 0;
+		}
+
+		/* The next line without its line break, or null at the end of the stream.
+		 */
+		byte[] readLine() throws IOException {
+			int scanned = position;
+			while (true) {
+				for (int i = scanned; i < limit; i++) {
+					if (buffer[i] == '\n') {
+						final byte[] line = Arrays.copyOfRange(buffer, position, i);
+						position = i + 1;
+						return line;
+					}
+				}
+				// move the start of the line to the front, or make room for a line longer than the buffer
+				if (position > 0) {
+					System.arraycopy(buffer, position, buffer, 0, limit - position);
+					limit -= position;
+					position = 0;
+				} else if (limit == buffer.length) {
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+				scanned = limit;
+				final int read = in.read(buffer, limit, buffer.length - limit);
+				if (read < 0) {
+					if (limit == position) {
+						return null;
+					}
+					final byte[] line = Arrays.copyOfRange(buffer, position, limit);
+					position = limit;
+					return line;
+				}
+				limit += read;
+			}
+		}
+	}
+
+	/* Place a record from CHROM, POS, REF and INFO END; header and empty lines give null.
+	 */
+	static RawVariant parse(byte[] line) {
+		if (line.length == 0 || line[0] == '#') {
+			return null;
+		}
+		final int[] tabs = new int[8];
+		int found = 0;
+		for (int i = 0; i < line.length && found < tabs.length; i++) {
+			if (line[i] == '\t') {
+				tabs[found++] = i;
+			}
+		}
+		if (found < 7) {
+			throw new RuntimeIOException("Malformed VCF line: " + new String(line, StandardCharsets.UTF_8));
+		}
+		final String contig = new String(line, 0, tabs[0], StandardCharsets.UTF_8);
+		int start = 0;
+		for (int i = tabs[0] + 1; i < tabs[1]; i++) {
+			start = start * 10 + (line[i] - '0');
+		}
+		int end = start + (tabs[3] - tabs[2] - 1) - 1;
+		// an END key in INFO overrides the span of REF
+		final int infoEnd = found > 7 ? tabs[7] : line.length;
+		for (int i = tabs[6] + 1; i + 4 <= infoEnd; i++) {
+			if ((i == tabs[6] + 1 || line[i - 1] == ';') && line[i] == 'E' && line[i + 1] == 'N' && line[i + 2] == 'D' && line[i + 3] == '=') {
+				int value = 0;
+				for (int j = i + 4; j < infoEnd && line[j] >= '0' && line[j] <= '9'; j++) {
+					value = value * 10 + (line[j] - '0');
+				}
+				end = value;
+				break;
+			}
+		}
+		return new RawVariant(contig, start, end, line);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+		if (tabix != null) {
+			tabix.close();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.samtools.SamFiles;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.seekablestream.ISeekableStreamFactory;
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStreamFactory;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.FeatureCodec;
+
+/*
+ * The input layer shared by the tools. Local files are read in large sequential chunks through
+ * NIO channels, or out of a memory mapping for local disks (see ChunkedFileStream); BGZF blocks are
+ * inflated on a small pool of threads ahead of the reader (see BgzfBlockInputStream); and the
+ * records of BAM iterators are decoded on a thread of their own ahead of the loop that uses them
+ * (see ReadAheadIterator). At most depth blocks or batches are held ahead of each reader. Readers
+ * of tribble that seek, such as those of indexed queries and tabix, get their streams from here
+ * too, through htsjdk's SeekableStreamFactory.
+ *
+ * Whenever a reader has to wait for input that has not been read ahead, the wait is timed as the
+ * "io wait" stage of the run, so the metrics show how often and how long the readers stalled.
+ *
+ * Each run of a tool reads with the settings of its options; the threads are shared by all runs,
+ * so --io-threads limits the blocks of each stream inflated at once rather than sizing the pool.
+ * The streams of a run are handed its metrics when they are opened, as the shared threads that
+ * use them belong to no run. With --io-threads 0 the files are opened as htsjdk opens them.
+ */
+public final class ReadAhead {
+	public static final String CHANNEL = "channel";
+	public static final String MAPPED = "mapped";
+	// the records of a BAM iterator handed over at a time
+	private static final int BATCH_SIZE = 256;
+
+	private static final InheritableThreadLocal<ReadAhead> current = new InheritableThreadLocal<ReadAhead>() {
+		@Override
+		protected ReadAhead initialValue() {
+			return new ReadAhead(defaultThreads(), 64, CHANNEL, ToolMetrics.current());
+		}
+	};
+	// the blocks of every stream are inflated on one pool of a thread per processor
+	private static final ThreadPoolExecutor inflaters = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(),
+			Runtime.getRuntime().availableProcessors(), 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemonThreads("inflater"));
+	// the threads that wait: cutting blocks, reading chunks ahead and taking records from iterators
+	private static final ExecutorService background = Executors.newCachedThreadPool(daemonThreads("read-ahead"));
+
+	static {
+		inflaters.allowCoreThreadTimeOut(true);
+		SeekableStreamFactory.setInstance(new StreamFactory(SeekableStreamFactory.getInstance()));
+	}
+
+	private final int threads;
+	private final int depth;
+	private final String mode;
+	private final ToolMetrics metrics;
+
+	private ReadAhead(int threads, int depth, String mode, ToolMetrics metrics) {
+		this.threads = threads;
+		this.depth = depth;
+		this.mode = mode;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Set the input layer of this run of a tool from its options: --io-threads, the blocks of a
+	 * stream inflated at once, 0 to read as htsjdk does; --read-ahead, the blocks or batches held ahead
+	 * of each reader; and --io-mode, channel or mapped.
+	 */
+	static ReadAhead configure(Map<String, String> options) {
+		final String mode = options.getOrDefault("--io-mode", CHANNEL);
+		if (!mode.equals(CHANNEL) && !mode.equals(MAPPED)) {
+			throw new IllegalArgumentException("--io-mode is " + CHANNEL + " or " + MAPPED + ", not " + mode);
+		}
+		final ReadAhead readAhead = new ReadAhead(Math.max(0, Integer.parseInt(options.getOrDefault("--io-threads", String.valueOf(defaultThreads())))),
+				Math.max(1, Integer.parseInt(options.getOrDefault("--read-ahead", "64"))), mode, ToolMetrics.current());
+		current.set(readAhead);
+		return readAhead;
+	}
+
+	static void clearCurrent() {
+		current.remove();
+	}
+
+	/**
+	 * @return the input layer of the tool that this thread runs for
+	 */
+	public static ReadAhead current() {
+		return current.get();
+	}
+
+	private static int defaultThreads() {
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
+	}
+
+	/* Daemon threads, for pools that are shared by runs or that a failed run may leave behind. They
+	 * drop what they inherit from the run that happened to create them, so that they neither report
+	 * to it nor keep it reachable, and they never keep the JVM alive.
+	 */
+	static ThreadFactory daemonThreads(String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(() -> {
+				ToolMetrics.clearCurrent();
+				clearCurrent();
+				runnable.run();
+			}, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Add a wait that started at start, in System.nanoTime, to the stalls of a run.
+	 */
+	static void stalled(ToolMetrics metrics, long start) {
+		metrics.addTime(ToolMetrics.IO_WAIT, System.nanoTime() - start);
+	}
+
+	public boolean isEnabled() {
+		return threads > 0;
+	}
+
+	@Override
+	public String toString() {
+		return isEnabled() ? threads + " blocks inflated at once, " + depth + " blocks ahead, " + mode + " reads" : "off";
+	}
+
+	/**
+	 * A local file for reading at any position.
+	 */
+	public SeekableStream openSeekable(File file) throws IOException {
+		if (!isEnabled()) {
+			return new SeekableFileStream(file);
+		}
+		return new ChunkedFileStream(file, mode.equals(MAPPED), background, metrics);
+	}
+
+	/**
+	 * The bytes of a file read once from start to end as they are, such as a BAM read as a stream.
+	 * Named pipes and other files that are not regular files have no length to read in chunks, so
+	 * they are read as plain streams.
+	 */
+	public InputStream openStream(File file) throws IOException {
+		if (!isEnabled() || !file.isFile()) {
+			return new FileInputStream(file);
+		}
+		return openSeekable(file);
+	}
+
+	/**
+	 * The bytes of a file from start to end, inflated if it is BGZF or gzip compressed.
+	 */
+	public InputStream open(File file) throws IOException {
+		// a pipe is read as it comes; looking for a BGZF header in it would take its first bytes
+		if (!isEnabled() || !file.isFile()) {
+			return IOUtil.openFileForReading(file);
+		}
+		if (BgzfBlockInputStream.isBgzf(file)) {
+			return new BgzfBlockInputStream(openSeekable(file), inflaters, background, threads, depth, metrics);
+		}
+		final SeekableStream in = openSeekable(file);
+		return file.getName().endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+	}
+
+	/**
+	 * The lines of a text file from start to end, inflated if it is compressed.
+	 */
+	public BufferedReader openReader(File file) throws IOException {
+		if (!isEnabled()) {
+			return IOUtil.openFileForBufferedReading(file);
+		}
+		return new BufferedReader(new InputStreamReader(open(file)), 1 << 20);
+	}
+
+	/**
+	 * A reader of a feature file that is read once from start to end.
+	 */
+	public <F extends Feature, S> AbstractFeatureReader<F, S> openFeatures(File featureFile, FeatureCodec<F, S> codec) throws IOException {
+		if (!isEnabled()) {
+			return AbstractFeatureReader.getFeatureReader(featureFile.getAbsolutePath(), codec, false);
+		}
+		return new SequentialFeatureReader<F, S>(featureFile.getAbsolutePath(), codec, open(featureFile));
+	}
+
+	/**
+	 * A reader of a BAM file and its index, if it has one. The queries of an index read a few blocks
+	 * here and there, which htsjdk's own buffered reads of the file do as well as chunks, so only a
+	 * mapped BAM is read through the input layer; long scans are read ahead with iterate.
+	 */
+	public SamReader openBam(SamReaderFactory factory, File bamFile) throws IOException {
+		if (!isEnabled() || !mode.equals(MAPPED) || !BgzfBlockInputStream.isBgzf(bamFile)) {
+			return factory.open(bamFile);
+		}
+		final SamInputResource resource = SamInputResource.of(openSeekable(bamFile));
+		final File indexFile = SamFiles.findIndex(bamFile);
+		return factory.open(indexFile != null ? resource.index(indexFile) : resource);
+	}
+
+	/**
+	 * The items of an iterator, such as the records of a BAM query, decoded ahead of the caller.
+	 */
+	public <T> CloseableIterator<T> iterate(CloseableIterator<T> iterator) {
+		if (!isEnabled()) {
+			return iterator;
+		}
+		return new ReadAheadIterator<T>(iterator, background, depth, BATCH_SIZE, metrics);
+	}
+
+	/*
+	 * The streams of htsjdk's readers: local files come from the input layer of the current run.
+	 */
+	private static class StreamFactory implements ISeekableStreamFactory {
+		private final ISeekableStreamFactory defaults;
+
+		StreamFactory(ISeekableStreamFactory defaults) {
+			this.defaults = defaults;
+		}
+
+		@Override
+		public SeekableStream getStreamFor(URL url) throws IOException {
+			return defaults.getStreamFor(url);
+		}
+
+		@Override
+		public SeekableStream getStreamFor(String path) throws IOException {
+			if (!SeekableStreamFactory.isFilePath(path) || path.startsWith("file:") || !current().isEnabled()) {
+				return defaults.getStreamFor(path);
+			}
+			return current().openSeekable(new File(path));
+		}
+
+		@Override
+		public SeekableStream getBufferedStream(SeekableStream stream) {
+			// chunks are buffers already
+			return stream instanceof ChunkedFileStream ? stream : defaults.getBufferedStream(stream);
+		}
+
+		@Override
+		public SeekableStream getBufferedStream(SeekableStream stream, int bufferSize) {
+			return stream instanceof ChunkedFileStream ? stream : defaults.getBufferedStream(stream, bufferSize);
+		}
+	}
+}
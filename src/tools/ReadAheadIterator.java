@@ -0,0 +1,120 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import htsjdk.samtools.util.CloseableIterator;
+
+/*
+ * The items of an iterator, taken from it on another thread in batches ahead of the consumer, so
+ * that the reading, inflating and decoding behind the iterator overlap the work done on the items.
+ * At most depth batches are held ahead. The iterator is closed on the consumer's thread once the
+ * other thread has stopped using it, so a reader may be queried again after close.
+ */
+public class ReadAheadIterator<T> implements CloseableIterator<T> {
+	private final CloseableIterator<T> source;
+	private final BlockingQueue<List<T>> batches;
+	private final List<T> endOfInput = Collections.emptyList();
+	private final Future<?> producer;
+	private final ToolMetrics metrics;
+	private volatile boolean closed = false;
+	private volatile Throwable failure = null;
+	private List<T> batch = Collections.emptyList();
+	private int index = 0;
+	private boolean done = false;
+
+	/**
+	 * @param metrics the run whose io wait the waits for a batch count towards
+	 */
+	public ReadAheadIterator(CloseableIterator<T> source, ExecutorService executor, int depth, int batchSize, ToolMetrics metrics) {
+		this.source = source;
+		this.metrics = metrics;
+		this.batches = new ArrayBlockingQueue<List<T>>(depth + 1);
+		this.producer = executor.submit(() -> {
+			try {
+				while (!closed && source.hasNext()) {
+					final List<T> next = new ArrayList<T>(batchSize);
+					while (next.size() < batchSize && source.hasNext()) {
+						next.add(source.next());
+					}
+					batches.put(next);
+				}
+			} catch (Throwable e) {
+				// errors too, so that a producer that died is never taken for the end of the input
+				failure = e;
+			} finally {
+				batches.put(endOfInput);
+			}
+			return null;
+		});
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (index == batch.size() && !done) {
+			List<T> next = batches.poll();
+			if (next == null) {
+				final long start = System.nanoTime();
+				try {
+					next = batches.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while reading ahead", e);
+				}
+				ReadAhead.stalled(metrics, start);
+			}
+			if (next == endOfInput) {
+				done = true;
+				if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				} else if (failure instanceof Error) {
+					throw (Error) failure;
+				} else if (failure != null) {
+					throw new RuntimeException(failure);
+				}
+			} else {
+				batch = next;
+				index = 0;
+			}
+		}
+		return index < batch.size();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return batch.get(index++);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		// keep room in the queue until the other thread has seen the close
+		while (true) {
+			batches.clear();
+			try {
+				producer.get(10, TimeUnit.MILLISECONDS);
+				break;
+			} catch (TimeoutException e) {
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				break;
+			}
+		}
+		source.close();
+	}
+}
@@ -0,0 +1,279 @@
+package tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.DefaultSAMRecordFactory;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFlag;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordFactory;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.util.Log;
+
+/*
+ * A chain of read filters: flags that must be set, flags that must not be set and a minimum
+ * mapping quality, plus an optional minimum base quality for the bases that are counted.
+ * Optionally only a fraction of the reads is kept: a read is sampled by a hash of its name, so the
+ * same reads are kept on every run and both mates of a pair are kept or dropped together.
+ *
+ * Used as the record factory of a BAM reader, the flag and mapping quality rules are applied to
+ * the fixed width fields of each record as it is read, before any of its variable length fields
+ * (name, cigar, bases, qualities, tags) are decoded. A rejected read is handed out as a bare
+ * record that is never decoded at all.
+ */
+public class ReadFilter implements SAMRecordFactory {
+	// one rule per flag, in the order they are checked
+	private static final SAMFlag[] FLAG_RULES = { SAMFlag.NOT_PRIMARY_ALIGNMENT, SAMFlag.READ_FAILS_VENDOR_QUALITY_CHECK,
+			SAMFlag.READ_UNMAPPED, SAMFlag.DUPLICATE_READ, SAMFlag.SUPPLEMENTARY_ALIGNMENT, SAMFlag.READ_PAIRED,
+			SAMFlag.PROPER_PAIR, SAMFlag.MATE_UNMAPPED, SAMFlag.READ_REVERSE_STRAND, SAMFlag.MATE_REVERSE_STRAND,
+			SAMFlag.FIRST_OF_PAIR, SAMFlag.SECOND_OF_PAIR };
+	// 0x704: secondary, failing vendor quality checks, unmapped and duplicate
+	public static final int DEFAULT_EXCLUDED_FLAGS = SAMFlag.NOT_PRIMARY_ALIGNMENT.intValue() | SAMFlag.READ_FAILS_VENDOR_QUALITY_CHECK.intValue()
+			| SAMFlag.READ_UNMAPPED.intValue() | SAMFlag.DUPLICATE_READ.intValue();
+	public static final int DEFAULT_MIN_MAPPING_QUALITY = 1;
+
+	private static final int RULE_REQUIRED_FLAGS = FLAG_RULES.length;
+	private static final int RULE_MAPPING_QUALITY = FLAG_RULES.length + 1;
+	private static final int RULE_NOT_SAMPLED = FLAG_RULES.length + 2;
+
+	private final int requiredFlags;
+	private final int excludedFlags;
+	private final int minMappingQuality;
+	private final int minBaseQuality;
+	private final double sampleFraction;
+	// a read is sampled when its name hashes below this
+	private final long sampleLimit;
+	private final LongAdder[] rejected = new LongAdder[FLAG_RULES.length + 3];
+	private final LongAdder passed = new LongAdder();
+
+	/* A read that failed a rule. Its alignment end is its start, so that neither the query
+	 * iterators nor anyone else ever needs to decode its cigar.
+	 */
+	private static class RejectedRecord extends BAMRecord {
+		private static final long serialVersionUID = 1L;
+
+		final int rule;
+
+		RejectedRecord(SAMFileHeader header, int referenceID, int coordinate, short readNameLength, short mappingQuality, int indexingBin,
+				int cigarLen, int flags, int readLen, int mateReferenceID, int mateCoordinate, int insertSize, byte[] variableLengthBlock, int rule) {
+			super(header, referenceID, coordinate, readNameLength, mappingQuality, indexingBin, cigarLen, flags, readLen, mateReferenceID,
+					mateCoordinate, insertSize, variableLengthBlock);
+			this.rule = rule;
+		}
+
+		@Override
+		public int getAlignmentEnd() {
+			return getAlignmentStart();
+		}
+	}
+
+	public ReadFilter() {
+		this(0, DEFAULT_EXCLUDED_FLAGS, DEFAULT_MIN_MAPPING_QUALITY, 0);
+	}
+
+	public ReadFilter(int requiredFlags, int excludedFlags, int minMappingQuality, int minBaseQuality) {
+		this(requiredFlags, excludedFlags, minMappingQuality, minBaseQuality, 1.0);
+	}
+
+	/**
+	 * @param sampleFraction the fraction of the reads that pass, by a hash of their names, or 1 for all
+	 */
+	public ReadFilter(int requiredFlags, int excludedFlags, int minMappingQuality, int minBaseQuality, double sampleFraction) {
+		if (!(sampleFraction > 0 && sampleFraction <= 1)) {
+			throw new IllegalArgumentException("The sample fraction must be above 0 and at most 1: " + sampleFraction);
+		}
+		this.requiredFlags = requiredFlags;
+		this.excludedFlags = excludedFlags;
+		this.minMappingQuality = minMappingQuality;
+		this.minBaseQuality = minBaseQuality;
+		this.sampleFraction = sampleFraction;
+		this.sampleLimit = (long) (sampleFraction * Long.MAX_VALUE);
+		for (int i = 0; i < rejected.length; i++) {
+			rejected[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * A reader factory that filters with this chain while reading, decodes lazily and skips
+	 * record validation.
+	 */
+	public SamReaderFactory readerFactory() {
+		return SamReaderFactory.makeDefault()
+				.samRecordFactory(this)
+				.disable(SamReaderFactory.Option.EAGERLY_DECODE)
+				.validationStringency(ValidationStringency.SILENT);
+	}
+
+	/**
+	 * @return the first rule the fixed width fields fail, or -1 if they pass
+	 */
+	private int check(int flags, int mappingQuality) {
+		final int excluded = flags & excludedFlags;
+		if (excluded != 0) {
+			for (int i = 0; i < FLAG_RULES.length; i++) {
+				if ((excluded & FLAG_RULES[i].intValue()) != 0) {
+					return i;
+				}
+			}
+		}
+		if ((flags & requiredFlags) != requiredFlags) {
+			return RULE_REQUIRED_FLAGS;
+		}
+		if (mappingQuality < minMappingQuality) {
+			return RULE_MAPPING_QUALITY;
+		}
+		return -1;
+	}
+
+	public double getSampleFraction() {
+		return sampleFraction;
+	}
+
+	/**
+	 * @return whether a read of this name is in the sample: its 64 bit FNV-1a hash, mixed by the
+	 * finalizer of MurmurHash3, is below the limit of the fraction
+	 */
+	private boolean isSampled(byte[] name, int length) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ (name[i] & 0xff)) * 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (hash >>> 1) < sampleLimit;
+	}
+
+	/**
+	 * Return true if the read should be filtered out. Rejections are counted per rule.
+	 */
+	public boolean reject(SAMRecord rec) {
+		return reject(rec, Integer.MIN_VALUE);
+	}
+
+	/**
+	 * Return true if the read should be filtered out. A read that starts at or before countedTo
+	 * was already counted by an earlier query of the same reference, and is not counted again.
+	 */
+	public boolean reject(SAMRecord rec, int countedTo) {
+		int rule = rec instanceof RejectedRecord ? ((RejectedRecord) rec).rule : check(rec.getFlags(), rec.getMappingQuality());
+		// the records of BAM files were sampled as they were read
+		if (rule < 0 && sampleFraction < 1 && !(rec instanceof BAMRecord)) {
+			final byte[] name = rec.getReadName().getBytes(StandardCharsets.US_ASCII);
+			if (!isSampled(name, name.length)) {
+				rule = RULE_NOT_SAMPLED;
+			}
+		}
+		final boolean counted = rec.getAlignmentStart() > countedTo;
+		if (rule >= 0) {
+			if (counted) {
+				rejected[rule].increment();
+			}
+			return true;
+		}
+		if (counted) {
+			passed.increment();
+		}
+		return false;
+	}
+
+	public interface BaseRuns {
+		void add(int start, int end);
+	}
+
+	/**
+	 * Add the aligned bases of a read that pass the base quality floor to a target.
+	 */
+	public void addToDepth(SAMRecord rec, DepthAccumulator depth) {
+		depth.addRead();
+		countedBases(rec, depth::addBlock);
+	}
+
+	/**
+	 * Report the runs of reference bases of a read that count towards depth: its alignment blocks,
+	 * split wherever a base falls below the base quality floor.
+	 */
+	public void countedBases(SAMRecord rec, BaseRuns runs) {
+		if (minBaseQuality <= 0) {
+			for (AlignmentBlock block : rec.getAlignmentBlocks()) {
+				runs.add(block.getReferenceStart(), block.getReferenceStart() + block.getLength() - 1);
+			}
+			return;
+		}
+		final byte[] qualities = rec.getBaseQualities();
+		for (AlignmentBlock block : rec.getAlignmentBlocks()) {
+			// reads without qualities count in full
+			int runStart = -1;
+			for (int i = 0; i <= block.getLength(); i++) {
+				final boolean good = i < block.getLength()
+						&& (qualities.length == 0 || qualities[block.getReadStart() - 1 + i] >= minBaseQuality);
+				if (good && runStart < 0) {
+					runStart = i;
+				} else if (!good && runStart >= 0) {
+					runs.add(block.getReferenceStart() + runStart, block.getReferenceStart() + i - 1);
+					runStart = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the reads seen to the metrics: all of them as records, and those that passed.
+	 */
+	public void reportCounts(ToolMetrics metrics) {
+		long rejectedCount = 0;
+		for (LongAdder count : rejected) {
+			rejectedCount += count.sum();
+		}
+		metrics.count(ToolMetrics.RECORDS, passed.sum() + rejectedCount);
+		metrics.count("reads passed", passed.sum());
+	}
+
+	/**
+	 * Log how many reads passed and how many each rule rejected.
+	 */
+	public void logCounts(Log log) {
+		StringBuilder sb = new StringBuilder("Read filter: passed ").append(passed.sum());
+		for (int i = 0; i < FLAG_RULES.length; i++) {
+			if (rejected[i].sum() > 0) {
+				sb.append(", ").append(FLAG_RULES[i].name()).append(' ').append(rejected[i].sum());
+			}
+		}
+		if (rejected[RULE_REQUIRED_FLAGS].sum() > 0) {
+			sb.append(", missing required flags ").append(rejected[RULE_REQUIRED_FLAGS].sum());
+		}
+		if (rejected[RULE_MAPPING_QUALITY].sum() > 0) {
+			sb.append(", mapping quality below ").append(minMappingQuality).append(' ').append(rejected[RULE_MAPPING_QUALITY].sum());
+		}
+		if (rejected[RULE_NOT_SAMPLED].sum() > 0) {
+			sb.append(", not sampled ").append(rejected[RULE_NOT_SAMPLED].sum());
+		}
+		log.info(sb.toString());
+	}
+
+	@Override
+	public SAMRecord createSAMRecord(SAMFileHeader header) {
+		return DefaultSAMRecordFactory.getInstance().createSAMRecord(header);
+	}
+
+	@Override
+	public BAMRecord createBAMRecord(SAMFileHeader header, int referenceSequenceIndex, int alignmentStart, short readNameLength, short mappingQuality,
+			int indexingBin, int cigarLen, int flags, int readLen, int mateReferenceSequenceIndex, int mateAlignmentStart, int insertSize,
+			byte[] variableLengthBlock) {
+		int rule = check(flags, mappingQuality);
+		// the read name leads the variable length fields, ending with a NUL
+		if (rule < 0 && sampleFraction < 1 && !isSampled(variableLengthBlock, readNameLength - 1)) {
+			rule = RULE_NOT_SAMPLED;
+		}
+		if (rule >= 0) {
+			return new RejectedRecord(header, referenceSequenceIndex, alignmentStart, readNameLength, mappingQuality, indexingBin, cigarLen, flags,
+					readLen, mateReferenceSequenceIndex, mateAlignmentStart, insertSize, variableLengthBlock, rule);
+		}
+		return DefaultSAMRecordFactory.getInstance().createBAMRecord(header, referenceSequenceIndex, alignmentStart, readNameLength, mappingQuality,
+				indexingBin, cigarLen, flags, readLen, mateReferenceSequenceIndex, mateAlignmentStart, insertSize, variableLengthBlock);
+	}
+}
@@ -1,29 +1,30 @@
 package tools;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import htsjdk.samtools.Defaults;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
-import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.Feature;
-import htsjdk.tribble.FeatureCodec;
-import htsjdk.tribble.Tribble;
-import htsjdk.tribble.bed.BEDCodec;
-import htsjdk.tribble.bed.FullBEDFeature;
-import htsjdk.tribble.index.Index;
-import htsjdk.tribble.index.IndexFactory;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.tribble.util.LittleEndianOutputStream;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -36,33 +37,51 @@ import htsjdk.variant.vcf.VCFHeader;
  * Input: VCF file, BED file of target regions
  * Output: Variants in target regions 
 */
-public class SelectVariants {
+public class SelectVariants extends CommandLineTool {
+	private static String version = "16.12.20";
     private static final Log log = Log.getInstance(SelectVariants.class);
 
 	public static void main(String[] args) throws IOException {
-        if (args.length < 2) {
-            System.out.println("Usage: " + SelectVariants.class.getCanonicalName() + " vcfFile bedFile [outFile] [summaryFile] [-exclude dbsnp]");
-            System.exit(1);
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = CommandLineTool.parseOptions(args, options, "--raw");
+        if (positional.size() < 2) {
+            System.out.println("Usage: " + SelectVariants.class.getCanonicalName() + " [--merge-gap N] [--raw] [--threads N] [--max-in-flight N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] vcfFile bedFile [outFile] [summaryFile] [-exclude dbsnp]");
+            exitWithUsage();
         }
-        final File vcfFile = new File(args[0]);
-        final File bedFile = new File(args[1]);
-        final File outputFile = args.length >= 3 ? new File(args[2]) : null;
-        final File summaryFile = args.length >= 4 ? new File(args[3]) : null;
-        
-        final long start = System.currentTimeMillis();
+        final File vcfFile = new File(positional.get(0));
+        final File bedFile = new File(positional.get(1));
+        final File outputFile = positional.size() >= 3 ? new File(positional.get(2)) : null;
+        final File summaryFile = positional.size() >= 4 ? new File(positional.get(3)) : null;
+        final int mergeGap = Integer.parseInt(options.getOrDefault("--merge-gap", "0"));
+        // copy the selected lines as they are instead of decoding and encoding every record
+        final boolean raw = options.containsKey("--raw");
+        final int threads = Integer.parseInt(options.getOrDefault("--threads", "1"));
+        final int maxInFlight = Math.max(1, Integer.parseInt(options.getOrDefault("--max-in-flight", String.valueOf(threads * 4))));
+        runTool(SelectVariants.class, version, args, options, () -> select(vcfFile, bedFile, outputFile, summaryFile, mergeGap, raw, threads, maxInFlight));
+	}
 
-        log.info("Start with args:" + Arrays.toString(args));
-        printConfigurationInfo();
+	private static void select(File vcfFile, File bedFile, File outputFile, File summaryFile, int mergeGap, boolean raw, int threads, int maxInFlight) throws IOException {
+        // the index loads or builds while the BED file is read
+        IndexManager.getInstance().prefetch(vcfFile, new VCFCodec());
+        final TargetSet targets = SharedReaders.getInstance().readTargets(bedFile);
 
-        // open input VCF file
-        VCFCodec vcfCodec = new VCFCodec();
-        final AbstractFeatureReader<VariantContext, LineIterator> vcfReader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), vcfCodec, false);
-        loadIndex(vcfFile, vcfCodec);
+        // the header of the input VCF
+        final AbstractFeatureReader<VariantContext, LineIterator> vcfReader = SharedReaders.getInstance().openIndexed(vcfFile, new VCFCodec());
+        final VCFHeader header;
+        try {
+        	header = (VCFHeader) vcfReader.getHeader();
+        } finally {
+        	SharedReaders.getInstance().release(vcfReader);
+        }
 
        	// open output VCF file
-        VariantContextWriter vcfWriter = (outputFile != null) ? new VariantContextWriterBuilder().setOutputFile(outputFile).setOutputFileType(VariantContextWriterBuilder.OutputType.VCF).unsetOption(Options.INDEX_ON_THE_FLY).build() : null;
+        VariantContextWriter vcfWriter = (outputFile != null && !raw) ? new VariantContextWriterBuilder().setOutputFile(outputFile).setOutputFileType(VariantContextWriterBuilder.OutputType.VCF).unsetOption(Options.INDEX_ON_THE_FLY).build() : null;
         if (vcfWriter !=  null) {
-            vcfWriter.writeHeader((VCFHeader) vcfReader.getHeader());
+            vcfWriter.writeHeader(header);
+        }
+        final OutputStream rawOut = (outputFile != null && raw) ? new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 20) : null;
+        if (rawOut != null) {
+        	rawOut.write(RawVariantReader.readHeader(vcfFile));
         }
         
         // open output summary file
@@ -71,115 +90,211 @@ public class SelectVariants {
         	summaryWriter.println("#name\tvariant_count");
         }
         
-        // open BED file
-        AbstractFeatureReader bedReader = AbstractFeatureReader.getFeatureReader(bedFile.getAbsolutePath(), new BEDCodec(), false); // getBEDReader(bedFile);
-        
         // TODO: Make sure chromosomes in VCF files and BEd files all match
         
-        // now read iterate over the BED file
+        // one query per block of merged BED features, in the contig order of the VCF
+        final List<QueryPlan.Block> blocks = QueryPlan.plan(targets, QueryPlan.contigOrder(header, IndexManager.getInstance().getIndex(vcfFile, new VCFCodec())), mergeGap);
+        log.info("Scanning for variants in " + targets.size() + " BED features with " + blocks.size() + " queries");
+        final long[] variantCounts = new long[targets.size()];
+        // progress is recorded where records are written, so it is the throughput of all the workers
         final ProgressLogger pl = new ProgressLogger(log, 1000000);
-        Iterator<Feature> iter = bedReader.iterator();
-        long bedRecordCount = 0l;
-        while (iter.hasNext()) {
-        	FullBEDFeature bedFeature = (FullBEDFeature) iter.next();
-        	log.info("Scanning for variants in region " + bedFeature.getName() + " (" + bedFeature.getContig() + ":" + bedFeature.getStart() + "-" + bedFeature.getEnd() + ")");
-        	
-            // iterate VCF file
-        	long vcfRecordCount = 0l;
-        	Iterator<VariantContext> vcIterator = vcfReader.query(bedFeature.getContig(), bedFeature.getStart(), bedFeature.getEnd());
-        	while (vcIterator.hasNext()) {
-        		VariantContext vc = vcIterator.next();
-        		
-        		vcfRecordCount++;
-            	if (vcfWriter != null) {
-                	vcfWriter.add(vc);
-                }
-
-            	pl.record(vc.getContig(), vc.getStart());
-            }
-        	log.info("Found " + vcfRecordCount + " variants");
-        	if (summaryWriter != null) {
-        		summaryWriter.println(bedFeature.getName() + "\t" + vcfRecordCount);
+        final RecordSink output = vc -> {
+        	if (vcfWriter != null) {
+        		vcfWriter.add((VariantContext) vc);
+        	} else if (rawOut != null) {
+        		rawOut.write(((RawVariantReader.RawVariant) vc).getLine());
+        		rawOut.write('\n');
+        	}
+        	pl.record(vc.getContig(), vc.getStart());
+        };
+        if (threads > 1) {
+        	selectInParallel(vcfFile, raw, targets, blocks, variantCounts, threads, maxInFlight, output);
+        } else {
+        	try (RegionReader reader = openRegionReader(vcfFile, raw)) {
+        		for (int b = 0; b < blocks.size(); b++) {
+        			queryBlock(reader, targets, blocks, b, variantCounts, output);
+        		}
+        	}
+        }
+
+        if (summaryWriter != null) {
+        	for (int t = 0; t < targets.size(); t++) {
+        		summaryWriter.println(targets.getName(t) + "\t" + variantCounts[t]);
         	}
-            ++bedRecordCount;
         }
         if (vcfWriter != null) {
         	vcfWriter.close();
         }
+        if (rawOut != null) {
+        	rawOut.close();
+        }
         if (summaryWriter != null) {
         	summaryWriter.close();
-        }																												 																									
-        log.info("We saw " + bedRecordCount + " record(s) in file " + bedFile);
-        final long end = System.currentTimeMillis();
-        log.info(String.format("Done. Elapsed time %.3f seconds", (end - start) / 1000.0));                
+        }
+        log.info("We saw " + targets.size() + " record(s) in file " + bedFile);
 	}
 
-    private static void printConfigurationInfo() throws IOException {
-        log.info("Executing as " +
-                System.getProperty("user.name") + '@' + InetAddress.getLocalHost().getHostName() +
-                " on " + System.getProperty("os.name") + ' ' + System.getProperty("os.version") +
-                ' ' + System.getProperty("os.arch") + "; " + System.getProperty("java.vm.name") +
-                ' ' + System.getProperty("java.runtime.version"));
+    private interface RecordSink {
+    	void accept(Feature record) throws IOException;
+    }
+
+    /* The records of a region, decoded or as raw lines.
+     */
+    private interface RegionReader extends Closeable {
+    	Iterator<? extends Feature> query(String contig, int start, int end) throws IOException;
+    }
+
+    private static RegionReader openRegionReader(File vcfFile, boolean raw) throws IOException {
+    	if (raw) {
+    		final RawVariantReader reader = new RawVariantReader(vcfFile);
+    		return new RegionReader() {
+    			@Override
+    			public Iterator<? extends Feature> query(String contig, int start, int end) throws IOException {
+    				return reader.query(contig, start, end);
+    			}
+
+    			@Override
+    			public void close() throws IOException {
+    				reader.close();
+    			}
+    		};
+    	}
+    	final AbstractFeatureReader<VariantContext, LineIterator> reader = SharedReaders.getInstance().openIndexed(vcfFile, new VCFCodec());
+    	return new RegionReader() {
+    		@Override
+    		public Iterator<? extends Feature> query(String contig, int start, int end) throws IOException {
+    			return reader.query(contig, start, end);
+    		}
+
+    		@Override
+    		public void close() throws IOException {
+    			SharedReaders.getInstance().release(reader);
+    		}
+    	};
+    }
+
+    /* Query block b and select its records; the query and the walk over its records are timed together,
+     * since the records are read and decoded as they are walked. The selected records are counted
+     * once for the block.
+     */
+    @SuppressWarnings("try")
+    private static void queryBlock(RegionReader reader, TargetSet targets, List<QueryPlan.Block> blocks, int b, long[] variantCounts, RecordSink sink) throws IOException {
+    	final QueryPlan.Block block = blocks.get(b);
+    	final ToolMetrics metrics = ToolMetrics.current();
+    	metrics.count(ToolMetrics.SEEKS, 1);
+    	try (ToolMetrics.Timer timer = metrics.time(ToolMetrics.QUERY)) {
+    		metrics.count(ToolMetrics.RECORDS, selectBlock(reader.query(block.contig, block.start, block.end), targets, blocks, b, variantCounts, sink));
+    	}
+    }
 
-        log.info(Defaults.allDefaults().entrySet().stream().map(e -> e.getKey() + ':' + e.getValue()).collect(Collectors.<String>joining(" ")));
+    /* Credit the records of block b to the BED features they overlap, and pass on the records
+     * that belong in the output: those that overlap a BED feature and were not already passed on
+     * with the previous block. Returns the number passed on.
+     */
+    private static long selectBlock(Iterator<? extends Feature> records, TargetSet targets, List<QueryPlan.Block> blocks, int b, long[] variantCounts, RecordSink sink) throws IOException {
+    	final QueryPlan.Block block = blocks.get(b);
+    	final QueryPlan.Block previous = b > 0 ? blocks.get(b - 1) : null;
+    	// a record that starts within the previous block on this contig was written with it, if at all
+    	final int written = previous != null && previous.contig.equals(block.contig) ? previous.end : 0;
+    	final List<Integer> active = new ArrayList<Integer>();
+    	long selected = 0;
+    	int next = 0;
+    	while (records.hasNext()) {
+    		Feature vc = records.next();
+
+    		// credit the record to every BED feature it overlaps
+    		while (next < block.targets.length && targets.getStart(block.targets[next]) <= vc.getEnd()) {
+    			active.add(block.targets[next++]);
+    		}
+    		active.removeIf(t -> targets.getEnd(t) < vc.getStart());
+    		boolean targeted = false;
+    		for (int t : active) {
+    			if (targets.getStart(t) <= vc.getEnd()) {
+    				variantCounts[t]++;
+    				targeted = true;
+    			}
+    		}
+
+    		// a record that reaches a later block is written here, where it is in order
+    		if (!targeted && vc.getEnd() > block.end) {
+    			targeted = overlapsLaterTarget(targets, blocks, b, vc);
+    		}
+    		// skip records in the gaps between merged BED features
+    		if (targeted && vc.getStart() > written) {
+    			sink.accept(vc);
+    			selected++;
+    		}
+    	}
+    	return selected;
     }
 
-    private static AbstractFeatureReader getBEDReader(File bedFile) {
-	    FeatureCodec bedCodec = new BEDCodec();
-	    // get an index
-	    Index bedIndex = loadIndex(bedFile, bedCodec);
-	    // get a reader
-	    AbstractFeatureReader bedReader = AbstractFeatureReader.getFeatureReader(bedFile.getAbsolutePath(), bedCodec, bedIndex);
-		return bedReader;
+    /* Select the blocks on a pool of workers that each have their own reader. The selected records
+     * of each block are held until all the blocks before it are written, and no more than
+     * maxInFlight blocks are queried or held at a time.
+     */
+    private static void selectInParallel(File vcfFile, boolean raw, TargetSet targets, List<QueryPlan.Block> blocks, long[] variantCounts,
+    		int threads, int maxInFlight, RecordSink output) throws IOException {
+    	log.info("Querying " + blocks.size() + " blocks with " + threads + " threads, at most " + maxInFlight + " at a time");
+    	final BlockingQueue<RegionReader> readers = new ArrayBlockingQueue<RegionReader>(threads);
+    	try {
+    		for (int i = 0; i < threads; i++) {
+    			readers.add(openRegionReader(vcfFile, raw));
+    		}
+    	} catch (IOException | RuntimeException e) {
+    		for (RegionReader reader : readers) {
+    			reader.close();
+    		}
+    		throw e;
+    	}
+    	final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    	final ArrayDeque<Future<List<Feature>>> inFlight = new ArrayDeque<Future<List<Feature>>>();
+    	try {
+    		for (int b = 0; b <= blocks.size(); b++) {
+    			// write out the oldest block once the window is full, and everything at the end
+    			while (!inFlight.isEmpty() && (inFlight.size() >= maxInFlight || b == blocks.size())) {
+    				for (Feature record : inFlight.removeFirst().get()) {
+    					output.accept(record);
+    				}
+    			}
+    			if (b == blocks.size()) {
+    				break;
+    			}
+    			final int block = b;
+    			inFlight.addLast(executor.submit(() -> {
+    				final List<Feature> selected = new ArrayList<Feature>();
+    				RegionReader reader = readers.take();
+    				try {
+    					queryBlock(reader, targets, blocks, block, variantCounts, selected::add);
+    				} finally {
+    					readers.put(reader);
+    				}
+    				return selected;
+    			}));
+    		}
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException("Interrupted while selecting variants", e);
+    	} catch (ExecutionException e) {
+    		if (e.getCause() instanceof RuntimeException) {
+    			throw (RuntimeException) e.getCause();
+    		}
+    		throw new RuntimeException(e.getCause());
+    	} finally {
+    		stopWorkers(executor, inFlight);
+    		for (RegionReader reader : readers) {
+    			reader.close();
+    		}
+    	}
     }
-    
-    /**
-    *
-    * @param featureFile the feature file
-    * @param codec the codec to decode features with
-    * @return an index instance
-    */
-   public static Index loadIndex(File featureFile, FeatureCodec codec) {
-       // lets setup a index file name
-       File indexFile = Tribble.indexFile(featureFile);
-
-       // our index instance;
-       Index index = null;
-
-       // can we read the index file
-       if (indexFile.canRead()) {
-    	   log.info("Loading index from disk for index file -> " + indexFile);
-           index = IndexFactory.loadIndex(indexFile.getAbsolutePath());
-       // else we want to make the index, and write it to disk if possible
-       } else {
-           log.info("Creating the index and memory, then writing to disk for index file -> " + indexFile);
-           index = createAndWriteNewIndex(featureFile,indexFile,codec);
-       }
-
-       return index;
-   }
-
-   /**
-    * creates a new index, given the feature file and the codec
-    * @param featureFile the feature file (i.e. .vcf, .bed)
-    * @param indexFile the index file; the location we should be writing the index to
-    * @param codec the codec to read features with
-    * @return an index instance
-    */
-   public static Index createAndWriteNewIndex(File featureFile, File indexFile, FeatureCodec codec) {
-       try {
-           Index index = IndexFactory.createLinearIndex(featureFile, codec);
-
-           // try to write it to disk
-           LittleEndianOutputStream stream = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
-           		
-           index.write(stream);
-           stream.close();
-
-           return index;
-       } catch (IOException e) {
-           throw new RuntimeIOException("Unable to create index from file " + featureFile,e);
-       }
-   }
 
+    private static boolean overlapsLaterTarget(TargetSet targets, List<QueryPlan.Block> blocks, int b, Feature vc) {
+    	for (int i = b + 1; i < blocks.size() && blocks.get(i).contig.equals(vc.getContig()) && blocks.get(i).start <= vc.getEnd(); i++) {
+    		for (int t : blocks.get(i).targets) {
+    			if (targets.getStart(t) <= vc.getEnd() && targets.getEnd(t) >= vc.getStart()) {
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
 }
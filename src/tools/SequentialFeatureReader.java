@@ -0,0 +1,95 @@
+package tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.CloseableTribbleIterator;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.FeatureCodec;
+import htsjdk.tribble.TribbleException;
+
+/*
+ * A feature file read once from start to end, from a stream that the input layer fills ahead of
+ * the reader. It stands in for the readers of tribble that are only iterated, and cannot be
+ * queried.
+ */
+public class SequentialFeatureReader<F extends Feature, S> extends AbstractFeatureReader<F, S> {
+	private final String path;
+	private final InputStream in;
+	private final S source;
+	private boolean iterated = false;
+
+	public SequentialFeatureReader(String path, FeatureCodec<F, S> codec, InputStream in) throws IOException {
+		super(path, codec);
+		this.path = path;
+		this.in = in;
+		this.source = codec.makeSourceFromStream(in);
+		this.header = codec.readHeader(source);
+	}
+
+	@Override
+	public CloseableTribbleIterator<F> query(String contig, int start, int end) throws IOException {
+		throw new UnsupportedOperationException("A sequential reader cannot be queried");
+	}
+
+	@Override
+	public CloseableTribbleIterator<F> iterator() throws IOException {
+		if (iterated) {
+			throw new IllegalStateException("A sequential reader is iterated once");
+		}
+		iterated = true;
+		return new FeatureIterator();
+	}
+
+	@Override
+	public List<String> getSequenceNames() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public void close() throws IOException {
+		codec.close(source);
+		in.close();
+	}
+
+	private class FeatureIterator implements CloseableTribbleIterator<F> {
+		private F next = null;
+
+		@Override
+		public boolean hasNext() {
+			try {
+				// the codec skips comments and the lines it filters out by decoding them to null
+				while (next == null && !codec.isDone(source)) {
+					next = codec.decode(source);
+				}
+			} catch (IOException e) {
+				throw new TribbleException.MalformedFeatureFile("Unable to read a feature", path, e);
+			}
+			return next != null;
+		}
+
+		@Override
+		public F next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final F feature = next;
+			next = null;
+			return feature;
+		}
+
+		@Override
+		public Iterator<F> iterator() {
+			return this;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
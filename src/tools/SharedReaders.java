@@ -0,0 +1,170 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.FeatureCodec;
+
+/*
+ * Open readers of feature files and known sites stores, and parsed BED files, kept between the
+ * jobs of a ToolServer so that shared reference files such as target BEDs and dbSNP are opened
+ * once. A reader is borrowed by one job at a time and handed back with release; the idle readers
+ * and the parsed BED files are kept up to the capacity, least recently used first out. A file
+ * that has changed since it was opened is opened again.
+ *
+ * The capacity is 0 unless a server sets it, so a tool run from the command line keeps nothing:
+ * release then simply closes the reader.
+ */
+public final class SharedReaders {
+	private static final SharedReaders instance = new SharedReaders();
+
+	private static class Entry {
+		final String key;
+		final long length;
+		final long lastModified;
+		final Object value;
+
+		Entry(String key, File file, Object value) {
+			this.key = key;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+			this.value = value;
+		}
+
+		boolean isCurrent(File file) {
+			return length == file.length() && lastModified == file.lastModified();
+		}
+	}
+
+	private interface Opener<T> {
+		T open() throws IOException;
+	}
+
+	private int capacity = 0;
+	// least recently used first
+	private final LinkedList<Entry> idle = new LinkedList<Entry>();
+	private final LinkedList<Entry> targets = new LinkedList<Entry>();
+	private final Map<Object, Entry> borrowed = new IdentityHashMap<Object, Entry>();
+
+	private SharedReaders() {
+	}
+
+	public static SharedReaders getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @param capacity the idle readers, and separately the parsed BED files, to keep
+	 */
+	public synchronized void setCapacity(int capacity) throws IOException {
+		this.capacity = capacity;
+		evict(idle);
+		evict(targets);
+	}
+
+	/**
+	 * Borrow a reader for queries on a feature file, opened through IndexManager.openIndexed.
+	 */
+	@SuppressWarnings("unchecked")
+	public <F extends Feature, S> AbstractFeatureReader<F, S> openIndexed(File featureFile, FeatureCodec<F, S> codec) throws IOException {
+		return borrow("indexed " + codec.getClass().getName(), featureFile, () -> IndexManager.getInstance().openIndexed(featureFile, codec));
+	}
+
+	/**
+	 * Borrow a known sites store.
+	 */
+	public KnownSitesStore openKnownSites(File storeFile) throws IOException {
+		return borrow("known sites", storeFile, () -> new KnownSitesStore(storeFile));
+	}
+
+	/**
+	 * Hand back a reader: it is kept for the next job if there is room, or closed. Readers that
+	 * were not borrowed here are closed.
+	 */
+	public void release(AutoCloseable reader) throws IOException {
+		synchronized (this) {
+			final Entry entry = borrowed.remove(reader);
+			if (entry != null && capacity > 0) {
+				idle.addLast(entry);
+				evict(idle);
+				return;
+			}
+		}
+		close(reader);
+	}
+
+	/**
+	 * The targets of a BED file, parsed once while they are kept.
+	 */
+	public TargetSet readTargets(File bedFile) throws IOException {
+		final String key = bedFile.getAbsolutePath();
+		synchronized (this) {
+			for (Iterator<Entry> i = targets.iterator(); i.hasNext(); ) {
+				final Entry entry = i.next();
+				if (entry.key.equals(key)) {
+					i.remove();
+					if (entry.isCurrent(bedFile)) {
+						targets.addLast(entry);
+						return (TargetSet) entry.value;
+					}
+				}
+			}
+		}
+		final TargetSet set = TargetSet.read(bedFile);
+		synchronized (this) {
+			if (capacity > 0) {
+				targets.addLast(new Entry(key, bedFile, set));
+				evict(targets);
+			}
+		}
+		return set;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T borrow(String type, File file, Opener<T> opener) throws IOException {
+		final String key = type + " " + file.getAbsolutePath();
+		synchronized (this) {
+			for (Iterator<Entry> i = idle.descendingIterator(); i.hasNext(); ) {
+				final Entry entry = i.next();
+				if (entry.key.equals(key)) {
+					i.remove();
+					if (entry.isCurrent(file)) {
+						borrowed.put(entry.value, entry);
+						return (T) entry.value;
+					}
+					close((AutoCloseable) entry.value);
+				}
+			}
+		}
+		final T reader = opener.open();
+		synchronized (this) {
+			borrowed.put(reader, new Entry(key, file, reader));
+		}
+		return reader;
+	}
+
+	private void evict(LinkedList<Entry> entries) throws IOException {
+		while (entries.size() > capacity) {
+			final Entry entry = entries.removeFirst();
+			if (entry.value instanceof AutoCloseable) {
+				close((AutoCloseable) entry.value);
+			}
+		}
+	}
+
+	private static void close(AutoCloseable reader) throws IOException {
+		try {
+			reader.close();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -1,29 +1,38 @@
 package tools;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import htsjdk.samtools.Defaults;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.Log;
 import htsjdk.samtools.util.ProgressLogger;
-import htsjdk.samtools.util.RuntimeIOException;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.Feature;
-import htsjdk.tribble.FeatureCodec;
-import htsjdk.tribble.Tribble;
-import htsjdk.tribble.bed.BEDCodec;
 import htsjdk.tribble.bed.FullBEDFeature;
 import htsjdk.tribble.index.Index;
-import htsjdk.tribble.index.IndexFactory;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.tribble.util.LittleEndianOutputStream;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.Options;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
@@ -36,58 +45,115 @@ import htsjdk.variant.vcf.VCFHeader;
  * Input: VCF file, BED file of target regions
  * Output: Variants in target regions 
 */
-public class SubtractVariants {
+public class SubtractVariants extends CommandLineTool {
+	private static String version = "16.12.20";
     private static final Log log = Log.getInstance(SubtractVariants.class);
 
 	public static void main(String[] args) throws IOException {
-        if (args.length < 2) {
-            System.out.println("Usage: " + SubtractVariants.class.getCanonicalName() + " vcf vcf [output]");
-            System.exit(1);
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options, "--sorted");
+        final File knownSitesFile = options.containsKey("--known-sites") ? new File(options.get("--known-sites")) : null;
+        if (positional.size() < (knownSitesFile != null ? 1 : 2)) {
+            System.out.println("Usage: " + SubtractVariants.class.getCanonicalName() + " [--sorted] [--match overlap|position|allele] [--threads N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] vcf vcf [output]");
+            System.out.println("   or: " + SubtractVariants.class.getCanonicalName() + " [--match overlap|position|allele] [--threads N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] --known-sites store vcf [output]");
+            exitWithUsage();
+        }
+        final File vcf1File = new File(positional.get(0));
+        final File vcf2File = knownSitesFile == null ? new File(positional.get(1)) : null;
+        final int outputArg = knownSitesFile == null ? 2 : 1;
+        final File outputFile = positional.size() > outputArg ? new File(positional.get(outputArg)) : null;
+        final boolean sorted = options.containsKey("--sorted");
+        final VariantMatcher.Mode match = VariantMatcher.Mode.parse(options.getOrDefault("--match", "overlap"));
+        final int threads = Integer.parseInt(options.getOrDefault("--threads", "1"));
+        runTool(SubtractVariants.class, version, args, options, () -> {
+        	// open the known variants: a compiled store, or a VCF file
+        	final KnownSitesStore knownSites = knownSitesFile != null ? SharedReaders.getInstance().openKnownSites(knownSitesFile) : null;
+        	try {
+        		ToolMetrics.current().count(ToolMetrics.BYTES_READ, vcf1File.length());
+
+        		if (threads > 1) {
+        			subtractByContig(vcf1File, vcf2File, knownSites, sorted, match, threads, outputFile);
+        		} else {
+        			subtract(vcf1File, vcf2File, knownSites, sorted, match, outputFile);
+        		}
+        	} finally {
+        		// a failed job hands its store back too, or it stays borrowed for the life of a server
+        		if (knownSites != null) {
+        			SharedReaders.getInstance().release(knownSites);
+        		}
+        	}
+        });
+	}
+
+	/*
+	 * Walk the whole input VCF on this thread.
+	 */
+	private static void subtract(File vcf1File, File vcf2File, KnownSitesStore knownSites, boolean sorted, VariantMatcher.Mode match, File outputFile) throws IOException {
+        // the known variants VCF is queried per variant unless both files are walked together
+        if (knownSites == null && !sorted) {
+        	IndexManager.getInstance().prefetch(vcf2File, new VCFCodec());
         }
-        final File vcf1File = new File(args[0]);
-        final File vcf2File = new File(args[1]);
-        final File outputFile = args.length >= 3 ? new File(args[2]) : null;
-        
-        final long start = System.currentTimeMillis();
 
-        log.info("Start with args:" + Arrays.toString(args));
-        printConfigurationInfo();
+        // open input VCF file; it is read from start to end
+        final AbstractFeatureReader<VariantContext, LineIterator> vcf1Reader = ReadAhead.current().openFeatures(vcf1File, new VCFCodec());
 
-        // open input VCF file
-        VCFCodec vcf1Codec = new VCFCodec();
-        final AbstractFeatureReader<VariantContext, LineIterator> vcf1Reader = AbstractFeatureReader.getFeatureReader(vcf1File.getAbsolutePath(), vcf1Codec, false);
-        loadIndex(vcf1File, vcf1Codec);
+        AbstractFeatureReader<VariantContext, LineIterator> vcf2Reader = null;
+        try {
+        	if (knownSites == null) {
+        		vcf2Reader = sorted ? ReadAhead.current().openFeatures(vcf2File, new VCFCodec())
+        				: SharedReaders.getInstance().openIndexed(vcf2File, new VCFCodec());
+        	}
+        	subtract(vcf1Reader, vcf2Reader, vcf1File, vcf2File, knownSites, sorted, match, outputFile);
+        } finally {
+        	vcf1Reader.close();
+        	if (vcf2Reader != null) {
+        		SharedReaders.getInstance().release(vcf2Reader);
+        	}
+        }
+	}
 
-        // open input VCF file
-        VCFCodec vcf2Codec = new VCFCodec();
-        final AbstractFeatureReader<VariantContext, LineIterator> vcf2Reader = AbstractFeatureReader.getFeatureReader(vcf2File.getAbsolutePath(), vcf2Codec, false);
-        loadIndex(vcf2File, vcf2Codec);
+	private static void subtract(AbstractFeatureReader<VariantContext, LineIterator> vcf1Reader, AbstractFeatureReader<VariantContext, LineIterator> vcf2Reader,
+			File vcf1File, File vcf2File, KnownSitesStore knownSites, boolean sorted, VariantMatcher.Mode match, File outputFile) throws IOException {
 
        	// open output VCF file
-        VariantContextWriter vcfWriter = (outputFile != null) ? new VariantContextWriterBuilder().setOutputFile(outputFile).setOutputFileType(VariantContextWriterBuilder.OutputType.VCF).unsetOption(Options.INDEX_ON_THE_FLY).build() : null;
+        VariantContextWriter vcfWriter = (outputFile != null) ? newWriter(outputFile) : null;
         if (vcfWriter !=  null) {
             vcfWriter.writeHeader((VCFHeader) vcf1Reader.getHeader());
         }
                
         // TODO: Make sure chromosomes in VCF files match
         
+        final VariantMatcher matcher;
+        if (knownSites != null) {
+        	matcher = new VariantMatcher(match, knownSites);
+        } else if (sorted) {
+        	// a sorted merge-join walks both files once, in the contig order of their headers
+        	SAMSequenceDictionary dictionary = ((VCFHeader) vcf1Reader.getHeader()).getSequenceDictionary();
+        	if (dictionary == null) {
+        		dictionary = ((VCFHeader) vcf2Reader.getHeader()).getSequenceDictionary();
+        	}
+        	if (dictionary == null) {
+        		throw new IllegalArgumentException("--sorted needs ##contig lines in " + vcf1File + " or " + vcf2File + " to know the contig order");
+        	}
+        	matcher = new VariantMatcher(match, new KnownVariantCursor(vcf2Reader.iterator(), dictionary, vcf2File.getPath()), vcf1File.getPath());
+        } else {
+        	matcher = new VariantMatcher(match, vcf2Reader);
+        }
+
         // now read iterate over the BED file
         final ProgressLogger pl = new ProgressLogger(log, 1000000);
         // iterate VCF file
       	long vcfRecordCount = 0l;
+      	long filterTime = 0l;
        	Iterator<VariantContext> vcIterator = vcf1Reader.iterator();
         while (vcIterator.hasNext()) {
         	VariantContext vc = vcIterator.next();
        		vcfRecordCount++;
 
-       		int knownSnps = 0;
-       		Iterator<VariantContext> vc2Iterator = vcf2Reader.query(vc.getContig(), vc.getStart(), vc.getEnd());
-       		while (vc2Iterator.hasNext()) {
-       			vc2Iterator.next();
-       			knownSnps++;
-       		}
-       			
-       		if (knownSnps > 0) {
+       		final long filterStart = System.nanoTime();
+       		final boolean known = matcher.isKnown(vc);
+       		filterTime += System.nanoTime() - filterStart;
+       		if (known) {
        			continue;
        		}
        		
@@ -97,80 +163,177 @@ public class SubtractVariants {
 
            	pl.record(vc.getContig(), vc.getStart());
         }
+        final ToolMetrics metrics = ToolMetrics.current();
+        metrics.addTime(ToolMetrics.FILTER, filterTime);
+        metrics.count(ToolMetrics.RECORDS, vcfRecordCount);
+        metrics.count("records kept", pl.getCount());
         
         if (vcfWriter != null) {
         	vcfWriter.close();
         }
-        final long end = System.currentTimeMillis();
-        log.info(String.format("Done. Elapsed time %.3f seconds", (end - start) / 1000.0));                
 	}
 
-    private static void printConfigurationInfo() throws IOException {
-        log.info("Executing as " +
-                System.getProperty("user.name") + '@' + InetAddress.getLocalHost().getHostName() +
-                " on " + System.getProperty("os.name") + ' ' + System.getProperty("os.version") +
-                ' ' + System.getProperty("os.arch") + "; " + System.getProperty("java.vm.name") +
-                ' ' + System.getProperty("java.runtime.version"));
-
-        log.info(Defaults.allDefaults().entrySet().stream().map(e -> e.getKey() + ':' + e.getValue()).collect(Collectors.<String>joining(" ")));
-    }
-
-    private static AbstractFeatureReader getBEDReader(File bedFile) {
-	    FeatureCodec bedCodec = new BEDCodec();
-	    // get an index
-	    Index bedIndex = loadIndex(bedFile, bedCodec);
-	    // get a reader
-	    AbstractFeatureReader bedReader = AbstractFeatureReader.getFeatureReader(bedFile.getAbsolutePath(), bedCodec, bedIndex);
-		return bedReader;
-    }
-    
-    /**
-    *
-    * @param featureFile the feature file
-    * @param codec the codec to decode features with
-    * @return an index instance
-    */
-   public static Index loadIndex(File featureFile, FeatureCodec codec) {
-       // lets setup a index file name
-       File indexFile = Tribble.indexFile(featureFile);
-
-       // our index instance;
-       Index index = null;
-
-       // can we read the index file
-       if (indexFile.canRead()) {
-    	   log.info("Loading index from disk for index file -> " + indexFile);
-           index = IndexFactory.loadIndex(indexFile.getAbsolutePath());
-       // else we want to make the index, and write it to disk if possible
-       } else {
-           log.info("Creating the index and memory, then writing to disk for index file -> " + indexFile);
-           index = createAndWriteNewIndex(featureFile,indexFile,codec);
-       }
-
-       return index;
-   }
-
-   /**
-    * creates a new index, given the feature file and the codec
-    * @param featureFile the feature file (i.e. .vcf, .bed)
-    * @param indexFile the index file; the location we should be writing the index to
-    * @param codec the codec to read features with
-    * @return an index instance
-    */
-   public static Index createAndWriteNewIndex(File featureFile, File indexFile, FeatureCodec codec) {
-       try {
-           Index index = IndexFactory.createLinearIndex(featureFile, codec);
-
-           // try to write it to disk
-           LittleEndianOutputStream stream = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
-           		
-           index.write(stream);
-           stream.close();
-
-           return index;
-       } catch (IOException e) {
-           throw new RuntimeIOException("Unable to create index from file " + featureFile,e);
-       }
-   }
+	/*
+	 * The readers of one worker thread.
+	 */
+	private static class Worker {
+		final AbstractFeatureReader<VariantContext, LineIterator> vcf1Reader;
+		final AbstractFeatureReader<VariantContext, LineIterator> vcf2Reader;
 
+		Worker(File vcf1File, File vcf2File) throws IOException {
+			vcf1Reader = IndexManager.getInstance().openIndexed(vcf1File, new VCFCodec());
+			vcf2Reader = vcf2File != null ? SharedReaders.getInstance().openIndexed(vcf2File, new VCFCodec()) : null;
+		}
+
+		void close() throws IOException {
+			vcf1Reader.close();
+			if (vcf2Reader != null) {
+				SharedReaders.getInstance().release(vcf2Reader);
+			}
+		}
+	}
+
+	/*
+	 * Subtract every contig of the input VCF on its own, on a pool of worker threads that each
+	 * have their own indexed readers. Each contig goes to a temporary VCF next to the output, and
+	 * the bodies of those are then concatenated after the header in dictionary order (or in the
+	 * order of the index when the header has no ##contig lines).
+	 */
+	private static void subtractByContig(File vcf1File, File vcf2File, KnownSitesStore knownSites, boolean sorted, VariantMatcher.Mode match,
+			int threads, File outputFile) throws IOException {
+		if (vcf2File != null) {
+			IndexManager.getInstance().prefetch(vcf2File, new VCFCodec());
+		}
+		final Index vcf1Index = IndexManager.getInstance().getIndex(vcf1File, new VCFCodec());
+		final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>(threads);
+		try {
+			for (int i = 0; i < threads; i++) {
+				workers.add(new Worker(vcf1File, knownSites == null ? vcf2File : null));
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Worker worker : workers) {
+				worker.close();
+			}
+			throw e;
+		}
+		final VCFHeader header = (VCFHeader) workers.peek().vcf1Reader.getHeader();
+
+		final List<String> contigs = new ArrayList<String>();
+		final SAMSequenceDictionary dictionary = header.getSequenceDictionary();
+		if (dictionary != null) {
+			for (SAMSequenceRecord sequence : dictionary.getSequences()) {
+				if (vcf1Index.containsChromosome(sequence.getSequenceName())) {
+					contigs.add(sequence.getSequenceName());
+				}
+			}
+		}
+		for (String contig : vcf1Index.getSequenceNames()) {
+			if (!contigs.contains(contig)) {
+				contigs.add(contig);
+			}
+		}
+		log.info("Subtracting " + contigs.size() + " contigs with " + threads + " threads");
+
+		final File[] parts = new File[contigs.size()];
+		final long[] kept = new long[contigs.size()];
+		final long[] total = new long[contigs.size()];
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+			for (int i = 0; i < contigs.size(); i++) {
+				final int part = i;
+				final String contig = contigs.get(i);
+				if (outputFile != null) {
+					parts[part] = File.createTempFile("SubtractVariants.", ".vcf", outputFile.getAbsoluteFile().getParentFile());
+					parts[part].deleteOnExit();
+				}
+				futures.add(executor.submit(() -> {
+					Worker worker = workers.take();
+					try {
+						final VariantMatcher matcher;
+						if (knownSites != null) {
+							matcher = new VariantMatcher(match, knownSites);
+						} else if (sorted) {
+							final SAMSequenceDictionary contigDictionary = new SAMSequenceDictionary(Collections.singletonList(new SAMSequenceRecord(contig, 0)));
+							matcher = new VariantMatcher(match, new KnownVariantCursor(worker.vcf2Reader.query(contig, 1, Integer.MAX_VALUE), contigDictionary,
+									vcf2File.getPath()), vcf1File.getPath());
+						} else {
+							matcher = new VariantMatcher(match, worker.vcf2Reader);
+						}
+						final VariantContextWriter vcfWriter = parts[part] != null ? newWriter(parts[part]) : null;
+						if (vcfWriter != null) {
+							vcfWriter.writeHeader(header);
+						}
+						Iterator<VariantContext> vcIterator = worker.vcf1Reader.query(contig, 1, Integer.MAX_VALUE);
+						long filterTime = 0;
+						while (vcIterator.hasNext()) {
+							VariantContext vc = vcIterator.next();
+							total[part]++;
+							final long filterStart = System.nanoTime();
+							final boolean known = matcher.isKnown(vc);
+							filterTime += System.nanoTime() - filterStart;
+							if (!known) {
+								kept[part]++;
+								if (vcfWriter != null) {
+									vcfWriter.add(vc);
+								}
+							}
+						}
+						if (vcfWriter != null) {
+							vcfWriter.close();
+						}
+						final ToolMetrics metrics = ToolMetrics.current();
+						metrics.addTime(ToolMetrics.FILTER, filterTime);
+						metrics.count(ToolMetrics.RECORDS, total[part]);
+						metrics.count("records kept", kept[part]);
+						log.info("Kept " + kept[part] + " of " + total[part] + " variants on " + contig);
+					} finally {
+						workers.put(worker);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while subtracting variants", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			stopWorkers(executor, futures);
+			for (Worker worker : workers) {
+				worker.close();
+			}
+		}
+
+		if (outputFile != null) {
+			final VariantContextWriter vcfWriter = newWriter(outputFile);
+			vcfWriter.writeHeader(header);
+			vcfWriter.close();
+			try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile, true), StandardCharsets.UTF_8), 1 << 20)) {
+				for (File part : parts) {
+					try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(part), StandardCharsets.UTF_8), 1 << 20)) {
+						String line;
+						while ((line = in.readLine()) != null) {
+							if (!line.startsWith("#")) {
+								out.write(line);
+								out.write('\n');
+							}
+						}
+					}
+					part.delete();
+				}
+			}
+		}
+		log.info("Kept " + Arrays.stream(kept).sum() + " of " + Arrays.stream(total).sum() + " variants");
+	}
+
+	private static VariantContextWriter newWriter(File outputFile) {
+		return new VariantContextWriterBuilder().setOutputFile(outputFile).setOutputFileType(VariantContextWriterBuilder.OutputType.VCF).unsetOption(Options.INDEX_ON_THE_FLY).build();
+	}
 }
@@ -0,0 +1,58 @@
+package tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Where the formatted VCFToTab table goes. The rows arrive as the bytes of the tab separated
+ * text, header line first, and each output stores them in its own format.
+ */
+public interface TabOutput extends Closeable {
+	String PLAIN = "tsv";
+	String BGZF = "bgzf";
+	String COLUMNAR = "columnar";
+
+	/**
+	 * Add the next bytes of the table. The bytes are not kept after the call returns.
+	 */
+	void write(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	 * Give up on the table after a failure: what is not written yet is dropped and the file is
+	 * left without the ending of its format, so that it cannot pass for a complete table.
+	 */
+	void abort() throws IOException;
+
+	/**
+	 * @return the format named by the extension of the file: .gz and .bgz for BGZF, .tabc for columnar
+	 */
+	static String formatOf(File outputFile) {
+		final String name = outputFile.getName();
+		if (name.endsWith(".gz") || name.endsWith(".bgz")) {
+			return BGZF;
+		}
+		if (name.endsWith(".tabc")) {
+			return COLUMNAR;
+		}
+		return PLAIN;
+	}
+
+	/**
+	 * @param format one of PLAIN, BGZF or COLUMNAR
+	 * @param threads the threads that compress the output
+	 * @param rowGroupSize the rows in each row group of the columnar format
+	 */
+	static TabOutput open(File outputFile, String format, int threads, int rowGroupSize) throws IOException {
+		switch (format) {
+		case PLAIN:
+			return new PlainTabOutput(outputFile);
+		case BGZF:
+			return new BgzfTabOutput(outputFile, threads);
+		case COLUMNAR:
+			return new ColumnarTabOutput(outputFile, threads, rowGroupSize);
+		default:
+			throw new IllegalArgumentException("Unknown output format " + format + "; expected " + PLAIN + ", " + BGZF + " or " + COLUMNAR);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/*
+ * Writes the rows of the VCFToTab table straight into a reusable byte buffer that goes to a
+ * TabOutput in large blocks. Numbers are formatted without going through strings where the
+ * result is known to be the same as Java's, and the INFO columns are found from a table built
+ * once from the header keys instead of probing every key on every row.
+ *
+ * The output is byte for byte what the string concatenation version wrote. A writer without a
+ * output keeps its rows in memory, so that batches of rows can be formatted on other threads.
+ */
+public class TabRowWriter implements Closeable {
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final Charset CHARSET = Charset.defaultCharset();
+	// the FORMAT keys with their own code, at the index of their code
+	private static final List<String> FORMAT_KEYS = Arrays.asList("GT", "DP", "GQ", "AD", "PL");
+	private static final int KEY_GT = 0;
+	private static final int KEY_DP = 1;
+	private static final int KEY_GQ = 2;
+	private static final int KEY_AD = 3;
+	private static final int KEY_PL = 4;
+	private static final int KEY_OTHER = 5;
+
+	// null when the rows are kept in memory
+	private final TabOutput output;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+
+	private final String[] infoKeys;
+	private final Map<String, Integer> infoColumns = new HashMap<String, Integer>();
+	private final Object[] infoValues;
+	private final String[] formatKeys;
+	private final int[] formatCodes;
+	private final String[] samples;
+
+	public TabRowWriter(File outputFile, List<String> infoKeys, List<String> formatKeys, List<String> samples) throws IOException {
+		this(new PlainTabOutput(outputFile), infoKeys, formatKeys, samples);
+	}
+
+	/**
+	 * A writer that keeps its rows in memory until they are taken with takeRows.
+	 */
+	public TabRowWriter(List<String> infoKeys, List<String> formatKeys, List<String> samples) {
+		this((TabOutput) null, infoKeys, formatKeys, samples);
+	}
+
+	/**
+	 * A writer whose rows go to the output, which it closes when it is closed.
+	 */
+	public TabRowWriter(TabOutput output, List<String> infoKeys, List<String> formatKeys, List<String> samples) {
+		this.output = output;
+		this.infoKeys = infoKeys.toArray(new String[0]);
+		for (int i = 0; i < this.infoKeys.length; i++) {
+			infoColumns.put(this.infoKeys[i], i);
+		}
+		this.infoValues = new Object[this.infoKeys.length];
+		this.formatKeys = formatKeys.toArray(new String[0]);
+		this.formatCodes = new int[this.formatKeys.length];
+		for (int i = 0; i < formatCodes.length; i++) {
+			final int code = FORMAT_KEYS.indexOf(this.formatKeys[i]);
+			formatCodes[i] = code >= 0 ? code : KEY_OTHER;
+		}
+		this.samples = samples.toArray(new String[0]);
+	}
+
+	/**
+	 * Header fields, followed by info fields, followed by the format fields of every sample.
+	 */
+	public void writeHeader() throws IOException {
+		writeString("CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER");
+		for (String key : infoKeys) {
+			write('\t');
+			writeString(key);
+		}
+		for (String sample : samples) {
+			for (String key : formatKeys) {
+				write('\t');
+				writeString(sample);
+				write('-');
+				writeString(key);
+			}
+		}
+		write('\n');
+	}
+
+	/**
+	 * Write a record. Its genotypes must be in the order of the samples given to the writer.
+	 */
+	public void writeRow(VariantContext vc) throws IOException {
+		writeString(vc.getContig());
+		write('\t');
+		writeInt(vc.getStart());
+		write('\t');
+		writeString(vc.getID());
+		write('\t');
+		writeString(vc.getReference().getDisplayString());
+		write('\t');
+		boolean first = true;
+		for (Allele alt : vc.getAlternateAlleles()) {
+			if (!first) {
+				write(',');
+			}
+			writeString(alt.toString());
+			first = false;
+		}
+		write('\t');
+		writeDouble(vc.getPhredScaledQual());
+		write('\t');
+		first = true;
+		for (String filter : vc.getFilters()) {
+			if (!first) {
+				write(',');
+			}
+			writeString(filter);
+			first = false;
+		}
+
+		// the info fields, placed by a single pass over the attributes of the record
+		Arrays.fill(infoValues, null);
+		for (Map.Entry<String, Object> attribute : vc.getAttributes().entrySet()) {
+			final Integer column = infoColumns.get(attribute.getKey());
+			if (column != null) {
+				infoValues[column] = attribute.getValue();
+			}
+		}
+		for (Object value : infoValues) {
+			write('\t');
+			if (value != null) {
+				writeList(value);
+			}
+		}
+
+		for (int s = 0; s < samples.length; s++) {
+			final Genotype genotype = vc.getGenotype(s);
+			for (int k = 0; k < formatKeys.length; k++) {
+				write('\t');
+				if (genotype.hasAnyAttribute(formatKeys[k])) {
+					writeGenotypeField(genotype, k);
+				}
+			}
+		}
+		write('\n');
+	}
+
+	private void writeGenotypeField(Genotype genotype, int k) throws IOException {
+		switch (formatCodes[k]) {
+		case KEY_GT:
+			writeString(genotype.getGenotypeString());
+			break;
+		case KEY_DP:
+			writeInt(genotype.getDP());
+			break;
+		case KEY_GQ:
+			writeInt(genotype.getGQ());
+			break;
+		case KEY_AD:
+			// as the List of Integers that getAnyAttribute returns prints itself
+			write('[');
+			final int[] ad = genotype.getAD();
+			for (int i = 0; i < ad.length; i++) {
+				if (i > 0) {
+					write(',');
+					write(' ');
+				}
+				writeInt(ad[i]);
+			}
+			write(']');
+			break;
+		case KEY_PL:
+			// PLs are printed through likelihoods that are normalized to a best PL of 0
+			final int[] pl = genotype.getPL();
+			int min = Integer.MAX_VALUE;
+			for (int value : pl) {
+				min = Math.min(min, value);
+			}
+			if (min != 0) {
+				writeString(genotype.getLikelihoodsString());
+				break;
+			}
+			for (int i = 0; i < pl.length; i++) {
+				if (i > 0) {
+					write(',');
+				}
+				writeInt(pl[i]);
+			}
+			break;
+		default:
+			writeObject(genotype.getAnyAttribute(formatKeys[k]));
+		}
+	}
+
+	/* An attribute value as VariantContext.getAttributeAsList sees it, joined by commas.
+	 */
+	private void writeList(Object value) throws IOException {
+		if (value instanceof Collection) {
+			boolean first = true;
+			for (Object element : (Collection<?>) value) {
+				if (!first) {
+					write(',');
+				}
+				writeObject(element);
+				first = false;
+			}
+		} else if (value instanceof Object[]) {
+			final Object[] elements = (Object[]) value;
+			for (int i = 0; i < elements.length; i++) {
+				if (i > 0) {
+					write(',');
+				}
+				writeObject(elements[i]);
+			}
+		} else {
+			writeObject(value);
+		}
+	}
+
+	private void writeObject(Object value) throws IOException {
+		if (value instanceof String) {
+			writeString((String) value);
+		} else if (value instanceof Integer) {
+			writeInt((Integer) value);
+		} else if (value instanceof Double) {
+			writeDouble((Double) value);
+		} else {
+			writeString(String.valueOf(value));
+		}
+	}
+
+	/**
+	 * @return the rows written since the last call, for a writer that keeps them in memory
+	 */
+	public byte[] takeRows() {
+		final byte[] rows = Arrays.copyOf(buffer, position);
+		position = 0;
+		return rows;
+	}
+
+	private void ensure(int length) throws IOException {
+		if (position + length > buffer.length) {
+			if (output != null) {
+				flush();
+			}
+			if (position + length > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(position + length, buffer.length * 2));
+			}
+		}
+	}
+
+	private void write(char c) throws IOException {
+		if (position == buffer.length) {
+			ensure(1);
+		}
+		buffer[position++] = (byte) c;
+	}
+
+	private void writeString(String s) throws IOException {
+		final int length = s.length();
+		ensure(length);
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x80) {
+				// not ASCII: encode the whole string instead
+				final byte[] bytes = s.getBytes(CHARSET);
+				ensure(bytes.length);
+				System.arraycopy(bytes, 0, buffer, position, bytes.length);
+				position += bytes.length;
+				return;
+			}
+			buffer[position + i] = (byte) c;
+		}
+		position += length;
+	}
+
+	private void writeInt(int value) throws IOException {
+		writeLong(value);
+	}
+
+	private void writeLong(long value) throws IOException {
+		ensure(20);
+		if (value == Long.MIN_VALUE) {
+			writeString(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		final int start = position;
+		do {
+			buffer[position++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		// the digits went in backwards
+		for (int i = start, j = position - 1; i < j; i++, j--) {
+			final byte b = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = b;
+		}
+	}
+
+	/* Doubles that are a whole number of tenths and of moderate size, which is what most QUAL values
+	 * are, print as Double.toString would print them; anything else goes through Double.toString.
+	 */
+	private void writeDouble(double value) throws IOException {
+		final double magnitude = Math.abs(value);
+		if (magnitude >= 1e-3 && magnitude < 1e7 || value == 0) {
+			final long tenths = Math.round(magnitude * 10);
+			if (tenths / 10.0 == magnitude) {
+				if (value < 0 || (value == 0 && 1 / value < 0)) {
+					write('-');
+				}
+				writeLong(tenths / 10);
+				write('.');
+				write((char) ('0' + tenths % 10));
+				return;
+			}
+		}
+		writeString(Double.toString(value));
+	}
+
+	@SuppressWarnings("try")
+	private void flush() throws IOException {
+		try (ToolMetrics.Timer timer = ToolMetrics.current().time(ToolMetrics.WRITE)) {
+			output.write(buffer, 0, position);
+		}
+		position = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (output != null) {
+			flush();
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.tribble.AbstractFeatureReader;
+import htsjdk.tribble.bed.BEDCodec;
+import htsjdk.tribble.bed.BEDFeature;
+import htsjdk.tribble.readers.LineIterator;
+
+/*
+ * An immutable set of BED targets held in primitive arrays, so that a single parsed copy can be
+ * shared by any number of worker threads. Targets are identified by their index in BED order.
+ */
+public final class TargetSet {
+	private final String[] contigNames;
+	private final int[] contigs;
+	private final int[] starts;
+	private final int[] ends;
+	private final String[] names;
+	// target ids sorted by contig and start, and where the targets of every contig begin in it
+	private final int[] sorted;
+	private final int[] contigOffsets;
+
+	private TargetSet(String[] contigNames, int[] contigs, int[] starts, int[] ends, String[] names) {
+		this.contigNames = contigNames;
+		this.contigs = contigs;
+		this.starts = starts;
+		this.ends = ends;
+		this.names = names;
+		this.sorted = IntStream.range(0, contigs.length).boxed()
+				.sorted(Comparator.<Integer>comparingInt(t -> contigs[t]).thenComparingInt(t -> starts[t]))
+				.mapToInt(Integer::intValue).toArray();
+		this.contigOffsets = new int[contigNames.length + 1];
+		for (int contig : contigs) {
+			contigOffsets[contig + 1]++;
+		}
+		for (int i = 0; i < contigNames.length; i++) {
+			contigOffsets[i + 1] += contigOffsets[i];
+		}
+	}
+
+	/**
+	 * Parse every feature of a BED file.
+	 */
+	public static TargetSet read(File bedFile) throws IOException {
+		final Map<String, Integer> contigIds = new LinkedHashMap<String, Integer>();
+		final List<BEDFeature> features = new ArrayList<BEDFeature>();
+		final AbstractFeatureReader<BEDFeature, LineIterator> bedReader = ReadAhead.current().openFeatures(bedFile, new BEDCodec());
+		Iterator<BEDFeature> bedIterator = bedReader.iterator();
+		while (bedIterator.hasNext()) {
+			BEDFeature bedFeature = bedIterator.next();
+			contigIds.putIfAbsent(bedFeature.getContig(), contigIds.size());
+			features.add(bedFeature);
+		}
+		bedReader.close();
+
+		final int[] contigs = new int[features.size()];
+		final int[] starts = new int[features.size()];
+		final int[] ends = new int[features.size()];
+		final String[] names = new String[features.size()];
+		for (int i = 0; i < features.size(); i++) {
+			BEDFeature bedFeature = features.get(i);
+			contigs[i] = contigIds.get(bedFeature.getContig());
+			starts[i] = bedFeature.getStart();
+			ends[i] = bedFeature.getEnd();
+			names[i] = bedFeature.getName();
+		}
+		return new TargetSet(contigIds.keySet().toArray(new String[0]), contigs, starts, ends, names);
+	}
+
+	public int size() {
+		return starts.length;
+	}
+
+	public String getContig(int target) {
+		return contigNames[contigs[target]];
+	}
+
+	public int getStart(int target) {
+		return starts[target];
+	}
+
+	public int getEnd(int target) {
+		return ends[target];
+	}
+
+	public int getLength(int target) {
+		return ends[target] - starts[target] + 1;
+	}
+
+	public String getName(int target) {
+		return names[target];
+	}
+
+	/**
+	 * @return the contigs of the targets that are missing from the dictionary
+	 */
+	public List<String> getMissingContigs(SAMSequenceDictionary dictionary) {
+		List<String> missing = new ArrayList<String>();
+		for (String contig : contigNames) {
+			if (dictionary.getSequence(contig) == null) {
+				missing.add(contig);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the ids of the targets of every reference in the dictionary that has any, in
+	 *         dictionary order, each sorted by start. Targets on other contigs are left out.
+	 */
+	public int[][] targetsByReference(SAMSequenceDictionary dictionary) {
+		List<int[]> groups = new ArrayList<int[]>();
+		for (int contig = 0; contig < contigNames.length; contig++) {
+			final int index = dictionary.getSequenceIndex(contigNames[contig]);
+			if (index >= 0 && contigOffsets[contig] < contigOffsets[contig + 1]) {
+				groups.add(new int[] { index, contig });
+			}
+		}
+		groups.sort(Comparator.comparingInt(g -> g[0]));
+		return groups.stream().map(g -> Arrays.copyOfRange(sorted, contigOffsets[g[1]], contigOffsets[g[1] + 1])).toArray(int[][]::new);
+	}
+}
@@ -0,0 +1,323 @@
+package tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*
+ * The timers and counters of one run of a tool. Stages such as "index", "query", "decode",
+ * "filter", "format", "write" and "io wait" are timed, and summed over the threads that run them,
+ * so a stage run on four threads for a second counts four seconds. Counters such as "records",
+ * "bytes read" and "seeks" are added to from any thread.
+ *
+ * Every timed stage is also a JFR event, and the totals are JFR events at the end of the run,
+ * so a run under -XX:StartFlightRecording shows where its time went next to the JVM's own events.
+ * The run's metrics belong to the thread that started the tool and to the threads it creates.
+ *
+ * The peak heap of a run is the most heap in use at any of the samples taken while it ran. The
+ * heap belongs to the whole JVM, so under ToolServer or BatchRunner it includes what the runs
+ * going on at the same time held.
+ */
+public class ToolMetrics {
+	public static final String INDEX = "index";
+	public static final String QUERY = "query";
+	public static final String DECODE = "decode";
+	public static final String FILTER = "filter";
+	public static final String FORMAT = "format";
+	public static final String WRITE = "write";
+	// the time readers waited for input that had not been read ahead; its count is the count of stalls
+	public static final String IO_WAIT = "io wait";
+	public static final String RECORDS = "records";
+	public static final String BYTES_READ = "bytes read";
+	public static final String SEEKS = "seeks";
+
+	// how often the heap in use is sampled while any run is going
+	private static final long HEAP_SAMPLE_MILLIS = 50;
+	private static final Set<ToolMetrics> running = ConcurrentHashMap.newKeySet();
+	private static final ScheduledExecutorService heapSampler = Executors.newSingleThreadScheduledExecutor(ReadAhead.daemonThreads("heap-sampler"));
+
+	static {
+		heapSampler.scheduleAtFixedRate(ToolMetrics::sampleHeap, HEAP_SAMPLE_MILLIS, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private static final InheritableThreadLocal<ToolMetrics> current = new InheritableThreadLocal<ToolMetrics>() {
+		@Override
+		protected ToolMetrics initialValue() {
+			return new ToolMetrics("unknown", "");
+		}
+	};
+
+	@Name("tools.Stage")
+	@Label("Tool Stage")
+	@Category("rgtools")
+	static class StageEvent extends Event {
+		@Label("Tool")
+		String tool;
+		@Label("Stage")
+		String stage;
+	}
+
+	@Name("tools.StageTotal")
+	@Label("Tool Stage Total")
+	@Category("rgtools")
+	static class StageTotalEvent extends Event {
+		@Label("Tool")
+		String tool;
+		@Label("Stage")
+		String stage;
+		@Label("Count")
+		long count;
+		@Label("Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long time;
+	}
+
+	@Name("tools.Counter")
+	@Label("Tool Counter")
+	@Category("rgtools")
+	static class CounterEvent extends Event {
+		@Label("Tool")
+		String tool;
+		@Label("Counter")
+		String counter;
+		@Label("Value")
+		long value;
+	}
+
+	/**
+	 * A running stage; closing it adds its time to the stage.
+	 */
+	public class Timer implements AutoCloseable {
+		private final String stage;
+		private final long start = System.nanoTime();
+		private final StageEvent event = new StageEvent();
+
+		private Timer(String stage) {
+			this.stage = stage;
+			event.begin();
+		}
+
+		@Override
+		public void close() {
+			addTime(stage, System.nanoTime() - start);
+			if (event.shouldCommit()) {
+				event.tool = tool;
+				event.stage = stage;
+				event.commit();
+			}
+		}
+	}
+
+	private final String tool;
+	private final String version;
+	private final long start = System.nanoTime();
+	private final Map<String, LongAdder> stageTimes = new ConcurrentHashMap<String, LongAdder>();
+	private final Map<String, LongAdder> stageCounts = new ConcurrentHashMap<String, LongAdder>();
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAccumulator peakHeap = new LongAccumulator(Long::max, 0);
+
+	ToolMetrics(String tool, String version) {
+		this.tool = tool;
+		this.version = version;
+	}
+
+	/**
+	 * @return the metrics of the tool that this thread runs for
+	 */
+	public static ToolMetrics current() {
+		return current.get();
+	}
+
+	static void setCurrent(ToolMetrics metrics) {
+		current.set(metrics);
+	}
+
+	static void clearCurrent() {
+		current.remove();
+	}
+
+	/**
+	 * Start timing a stage, for use in a try-with-resources statement.
+	 */
+	public Timer time(String stage) {
+		return new Timer(stage);
+	}
+
+	/**
+	 * Add time measured elsewhere to a stage, for stages too short to be timed one at a time.
+	 */
+	public void addTime(String stage, long nanos) {
+		stageTimes.computeIfAbsent(stage, s -> new LongAdder()).add(nanos);
+		stageCounts.computeIfAbsent(stage, s -> new LongAdder()).increment();
+	}
+
+	public void count(String counter, long value) {
+		counters.computeIfAbsent(counter, c -> new LongAdder()).add(value);
+	}
+
+	public long getCount(String counter) {
+		final LongAdder value = counters.get(counter);
+		return value != null ? value.sum() : 0;
+	}
+
+	/**
+	 * @return the time of a stage so far, summed over its threads
+	 */
+	public double getStageSeconds(String stage) {
+		final LongAdder time = stageTimes.get(stage);
+		return time != null ? time.sum() / 1e9 : 0;
+	}
+
+	public double getElapsedSeconds() {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	/**
+	 * @return the most heap in use at any of the samples taken while the run went on
+	 */
+	public long getPeakHeap() {
+		return peakHeap.get();
+	}
+
+	/* Sample the heap for this run from now until stopHeapSampling.
+	 */
+	void startHeapSampling() {
+		peakHeap.accumulate(heapUsed());
+		running.add(this);
+	}
+
+	void stopHeapSampling() {
+		running.remove(this);
+		peakHeap.accumulate(heapUsed());
+	}
+
+	private static long heapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void sampleHeap() {
+		if (!running.isEmpty()) {
+			final long used = heapUsed();
+			for (ToolMetrics metrics : running) {
+				metrics.peakHeap.accumulate(used);
+			}
+		}
+	}
+
+	/**
+	 * One line per stage and counter, for the log.
+	 */
+	public String summary() {
+		final StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, Long> stage : sorted(stageTimes).entrySet()) {
+			summary.append(String.format("%n  %-12s %10.3f s in %d", stage.getKey(), stage.getValue() / 1e9, stageCounts.get(stage.getKey()).sum()));
+		}
+		for (Map.Entry<String, Long> counter : sorted(counters).entrySet()) {
+			summary.append(String.format("%n  %-12s %14d", counter.getKey(), counter.getValue()));
+		}
+		summary.append(String.format("%n  %-12s %10.0f", "records/s", getCount(RECORDS) / getElapsedSeconds()));
+		summary.append(String.format("%n  %-12s %10d MB", "peak heap", getPeakHeap() >> 20));
+		return summary.toString();
+	}
+
+	/**
+	 * Commit the totals of every stage and counter as JFR events.
+	 */
+	void commitEvents() {
+		for (Map.Entry<String, Long> stage : sorted(stageTimes).entrySet()) {
+			final StageTotalEvent event = new StageTotalEvent();
+			if (event.shouldCommit()) {
+				event.tool = tool;
+				event.stage = stage.getKey();
+				event.count = stageCounts.get(stage.getKey()).sum();
+				event.time = stage.getValue();
+				event.commit();
+			}
+		}
+		for (Map.Entry<String, Long> counter : sorted(counters).entrySet()) {
+			final CounterEvent event = new CounterEvent();
+			if (event.shouldCommit()) {
+				event.tool = tool;
+				event.counter = counter.getKey();
+				event.value = counter.getValue();
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Write the metrics as a JSON object.
+	 */
+	void writeJson(File metricsFile, String[] args, boolean succeeded) throws IOException {
+		final double elapsed = getElapsedSeconds();
+		try (PrintWriter out = new PrintWriter(metricsFile, "UTF-8")) {
+			out.println("{");
+			out.println("  \"tool\": " + quote(tool) + ",");
+			out.println("  \"version\": " + quote(version) + ",");
+			out.print("  \"args\": [");
+			for (int i = 0; i < args.length; i++) {
+				out.print((i > 0 ? ", " : "") + quote(args[i]));
+			}
+			out.println("],");
+			out.println("  \"succeeded\": " + succeeded + ",");
+			out.println("  \"elapsedSeconds\": " + elapsed + ",");
+			out.println("  \"recordsPerSecond\": " + getCount(RECORDS) / elapsed + ",");
+			out.println("  \"peakHeapBytes\": " + getPeakHeap() + ",");
+			out.println("  \"stages\": {");
+			String separator = "";
+			for (Map.Entry<String, Long> stage : sorted(stageTimes).entrySet()) {
+				out.print(separator + "    " + quote(stage.getKey()) + ": {\"seconds\": " + stage.getValue() / 1e9
+						+ ", \"count\": " + stageCounts.get(stage.getKey()).sum() + "}");
+				separator = ",\n";
+			}
+			out.println();
+			out.println("  },");
+			out.println("  \"counters\": {");
+			separator = "";
+			for (Map.Entry<String, Long> counter : sorted(counters).entrySet()) {
+				out.print(separator + "    " + quote(counter.getKey()) + ": " + counter.getValue());
+				separator = ",\n";
+			}
+			out.println();
+			out.println("  }");
+			out.println("}");
+		}
+	}
+
+	private static Map<String, Long> sorted(Map<String, LongAdder> values) {
+		final Map<String, Long> sorted = new TreeMap<String, Long>();
+		values.forEach((key, value) -> sorted.put(key, value.sum()));
+		return sorted;
+	}
+
+	static String quote(String s) {
+		final StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,326 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import htsjdk.samtools.util.Log;
+
+/*
+ * This program runs the other tools as jobs of one long lived JVM, so that the JVM starts, the
+ * classes load and the code warms up once, and the indexes, the readers of shared files such as
+ * dbSNP and the parsed target BEDs are kept between jobs (see IndexManager and SharedReaders).
+ * Input: commands on a loopback TCP port
+ * Output: the outputs of the jobs, and their status
+ *
+ * A connection starts with the line "auth <token>", where the token is the random one that the
+ * server writes to the file of --token-file (by default .toolserver.token in the home directory),
+ * readable by its owner only; otherwise the connection is closed. The port is on the loopback
+ * address, but any local user could reach it, and jobs write files as the user of the server.
+ *
+ * A command is one line of tab separated fields, and every command is answered with one or more
+ * lines, the last of them empty:
+ *   submit <tool> <arg>...   queue a job, answered with its id, or "busy" when the queue is full;
+ *                            the tools are coverage, cohort, select, subtract, tab and compile
+ *   status [<id>]            one line per job: id, tool, state, seconds, records, records/s, message
+ *   wait <id>                the status of the job once it has finished
+ *   shutdown                 finish the queued jobs and stop
+ * Jobs run on a fixed pool of threads behind a bounded queue.
+ */
+public class ToolServer extends CommandLineTool {
+	private static String version = "16.12.22";
+	private static final Log log = Log.getInstance(ToolServer.class);
+	private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+	// the finished jobs whose status is kept
+	private static final int KEPT_JOBS = 10000;
+
+	interface ToolMain {
+		void main(String[] args) throws IOException;
+	}
+
+	// also the tools of the rows of a BatchRunner manifest
+	static final Map<String, ToolMain> TOOLS = new LinkedHashMap<String, ToolMain>();
+	static {
+		TOOLS.put("coverage", CalculateTargetRegionCoverage::main);
+		TOOLS.put("cohort", CalculateCohortCoverage::main);
+		TOOLS.put("select", SelectVariants::main);
+		TOOLS.put("subtract", SubtractVariants::main);
+		TOOLS.put("tab", VCFToTab::main);
+		TOOLS.put("compile", CompileKnownSites::main);
+	}
+
+	private enum State {
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	private static class Job {
+		final int id;
+		final String tool;
+		final String[] args;
+		volatile State state = State.QUEUED;
+		volatile ToolMetrics metrics;
+		volatile String message = "";
+		volatile Future<?> future;
+		// the elapsed time once the job has finished
+		volatile double seconds = -1;
+
+		Job(int id, String tool, String[] args) {
+			this.id = id;
+			this.tool = tool;
+			this.args = args;
+		}
+
+		String status() {
+			final ToolMetrics progress = metrics;
+			final double seconds = this.seconds >= 0 ? this.seconds : progress != null ? progress.getElapsedSeconds() : 0;
+			final long records = progress != null ? progress.getCount(ToolMetrics.RECORDS) : 0;
+			return String.format("%d\t%s\t%s\t%.3f\t%d\t%.0f\t%s", id, tool, state, seconds, records, seconds > 0 ? records / seconds : 0.0, message);
+		}
+	}
+
+	private final String token;
+	private final ServerSocket serverSocket;
+	private final ThreadPoolExecutor executor;
+	private final ExecutorService connections = Executors.newCachedThreadPool();
+	private final Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+	private final AtomicInteger nextId = new AtomicInteger(1);
+
+	private ToolServer(int port, int threads, int maxQueued, String token) throws IOException {
+		this.token = token;
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxQueued));
+	}
+
+	public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options);
+        if (!positional.isEmpty()) {
+            System.out.println("Usage: " + ToolServer.class.getCanonicalName() + " [--port N] [--threads N] [--max-queued N] [--cache-size N] [--index-cache N] [--token-file file]");
+            exitWithUsage();
+        }
+        final int port = Integer.parseInt(options.getOrDefault("--port", "0"));
+        final int threads = Math.max(1, Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        final int maxQueued = Math.max(1, Integer.parseInt(options.getOrDefault("--max-queued", "1000")));
+        final File tokenFile = new File(options.getOrDefault("--token-file", new File(System.getProperty("user.home"), ".toolserver.token").getPath()));
+
+        log.info("Start with args:" + Arrays.toString(args));
+        printConfigurationInfo(version);
+
+        SharedReaders.getInstance().setCapacity(Integer.parseInt(options.getOrDefault("--cache-size", "16")));
+        IndexManager.getInstance().setCapacity(Integer.parseInt(options.getOrDefault("--index-cache", "64")));
+        final ToolServer server = new ToolServer(port, threads, maxQueued, writeToken(tokenFile));
+        log.info("Listening on " + server.serverSocket.getLocalSocketAddress() + " with " + threads + " job threads; the token is in " + tokenFile);
+        server.serve();
+        log.info("Stopped");
+	}
+
+	/**
+	 * @return whether this thread runs a job of a server
+	 */
+	static boolean isJob() {
+		return currentJob.get() != null;
+	}
+
+	/**
+	 * Called by a tool as it starts, so that the progress of its job can be followed.
+	 */
+	static void started(ToolMetrics metrics) {
+		final Job job = currentJob.get();
+		if (job != null) {
+			job.metrics = metrics;
+		}
+	}
+
+	/* Write a new random token to a file that only its owner can read.
+	 */
+	private static String writeToken(File tokenFile) throws IOException {
+		final byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		final StringBuilder token = new StringBuilder();
+		for (byte b : bytes) {
+			token.append(String.format("%02x", b));
+		}
+		final Path path = tokenFile.toPath();
+		Files.deleteIfExists(path);
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			Files.createFile(path);
+			tokenFile.setReadable(false, false);
+			tokenFile.setReadable(true, true);
+			tokenFile.setWritable(false, false);
+			tokenFile.setWritable(true, true);
+		}
+		Files.write(path, (token + "\n").getBytes(StandardCharsets.US_ASCII));
+		return token.toString();
+	}
+
+	private void serve() throws IOException {
+		try {
+			while (!serverSocket.isClosed()) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (SocketException e) {
+					// closed by shutdown
+					break;
+				}
+				connections.submit(() -> {
+					handle(socket);
+					return null;
+				});
+			}
+		} finally {
+			connections.shutdown();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void handle(Socket socket) throws IOException {
+		try (Socket connection = socket;
+				BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+			// nothing is done for a connection until it has shown the token
+			final String auth = in.readLine();
+			if (auth == null || !auth.startsWith("auth ") || !MessageDigest.isEqual(auth.substring(5).trim().getBytes(StandardCharsets.US_ASCII),
+					token.getBytes(StandardCharsets.US_ASCII))) {
+				out.println("error\tnot authenticated");
+				out.println();
+				out.flush();
+				log.warn("Refused a connection from " + connection.getRemoteSocketAddress() + " without the token");
+				return;
+			}
+			out.println("ok");
+			out.println();
+			out.flush();
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				for (String reply : execute(line.split("\t", -1))) {
+					out.println(reply);
+				}
+				out.println();
+				out.flush();
+			}
+		}
+	}
+
+	private List<String> execute(String[] command) throws IOException {
+		final List<String> replies = new ArrayList<String>();
+		switch (command[0]) {
+		case "submit":
+			replies.add(command.length < 2 ? "error\tsubmit needs a tool" : submit(command[1], Arrays.copyOfRange(command, 2, command.length)));
+			break;
+		case "status":
+			synchronized (jobs) {
+				if (command.length > 1) {
+					final Job job = jobs.get(Integer.parseInt(command[1]));
+					replies.add(job != null ? job.status() : "error\tno job " + command[1]);
+				} else {
+					for (Job job : jobs.values()) {
+						replies.add(job.status());
+					}
+				}
+			}
+			break;
+		case "wait":
+			final Job job;
+			synchronized (jobs) {
+				job = command.length > 1 ? jobs.get(Integer.parseInt(command[1])) : null;
+			}
+			if (job == null) {
+				replies.add("error\tno job " + (command.length > 1 ? command[1] : ""));
+				break;
+			}
+			try {
+				job.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for job " + job.id, e);
+			} catch (ExecutionException e) {
+				// the job records its own failure
+			}
+			replies.add(job.status());
+			break;
+		case "shutdown":
+			log.info("Shutting down after " + executor.getQueue().size() + " queued jobs");
+			serverSocket.close();
+			replies.add("ok");
+			break;
+		default:
+			replies.add("error\tunknown command " + command[0]);
+		}
+		return replies;
+	}
+
+	private String submit(String tool, String[] args) {
+		final ToolMain main = TOOLS.get(tool);
+		if (main == null) {
+			return "error\tunknown tool " + tool + "; expected one of " + TOOLS.keySet();
+		}
+		final Job job = new Job(nextId.getAndIncrement(), tool, args);
+		synchronized (jobs) {
+			try {
+				job.future = executor.submit(() -> run(job, main));
+			} catch (RejectedExecutionException e) {
+				return "busy";
+			}
+			jobs.put(job.id, job);
+			// forget the oldest finished jobs
+			jobs.values().removeIf(j -> jobs.size() > KEPT_JOBS && (j.state == State.DONE || j.state == State.FAILED));
+		}
+		log.info("Queued job " + job.id + ": " + tool + " " + Arrays.toString(args));
+		return String.valueOf(job.id);
+	}
+
+	private static void run(Job job, ToolMain main) {
+		currentJob.set(job);
+		job.state = State.RUNNING;
+		try {
+			main.main(job.args);
+			job.state = State.DONE;
+		} catch (Exception | Error e) {
+			log.error(e, "Job " + job.id + " failed");
+			job.message = String.valueOf(e.getMessage()).replace('\t', ' ').replace('\n', ' ');
+			job.state = State.FAILED;
+		} finally {
+			job.seconds = job.metrics != null ? job.metrics.getElapsedSeconds() : 0;
+			currentJob.remove();
+		}
+	}
+}
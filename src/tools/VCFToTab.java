@@ -1,126 +1,253 @@
 package tools;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import htsjdk.samtools.util.Log;
-import htsjdk.samtools.util.StringUtil;
-import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.readers.LineIterator;
-import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.tribble.readers.LineIteratorImpl;
+import htsjdk.tribble.readers.SynchronousLineReader;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
-import htsjdk.variant.vcf.VCFFormatHeaderLine;
 import htsjdk.variant.vcf.VCFHeader;
-import htsjdk.variant.vcf.VCFInfoHeaderLine;
 
 public class VCFToTab extends CommandLineTool {
 	private static String version = "16.11.10";
 	private static final Log log = Log.getInstance(VCFToTab.class);
 
 	public static void main(String[] args) throws IOException  {
-        if (args.length != 2) {
-            System.out.println("Usage: " + VCFToTab.class.getCanonicalName() + " vcfFile outFile");
-            System.exit(1);
-        }
-        final File vcfFile = new File(args[0]);
-        final File outputFile = new File(args[1]);
-        
-        final long start = System.currentTimeMillis();
-
-        log.info("Start with args:" + Arrays.toString(args));
-        printConfigurationInfo(version);
-
-        // open VCF file
-        VCFCodec vcfCodec = new VCFCodec();
-        final AbstractFeatureReader<VariantContext, LineIterator> vcfReader = AbstractFeatureReader.getFeatureReader(vcfFile.getAbsolutePath(), vcfCodec, false);
-
-       	// open output file
-        PrintWriter outWriter = new PrintWriter(outputFile);
-
-        // Read the header and construct a table of all the possible info fields
-        VCFHeader vcfHeader = (VCFHeader) vcfReader.getHeader();
-
-        // Get the format fields
-        HashMap<String, VCFFormatHeaderLine> vcfFormatById = new HashMap<String, VCFFormatHeaderLine>();
-        HashMap<String, VCFInfoHeaderLine> vcfInfoById = new HashMap<String, VCFInfoHeaderLine>();        
-        ArrayList<String> perSampleKeyList = new ArrayList<String>();
-        ArrayList<String> keyList = new ArrayList<String>();
-        
-        // Get format fields
-        for (VCFFormatHeaderLine vcfInfo: vcfHeader.getFormatHeaderLines()) {
-			vcfFormatById.put(vcfInfo.getID(), vcfInfo);
-			perSampleKeyList.add(vcfInfo.getID());
-        	
+        final Map<String, String> options = new HashMap<String, String>();
+        final List<String> positional = parseOptions(args, options);
+        if (positional.size() != 2) {
+            System.out.println("Usage: " + VCFToTab.class.getCanonicalName() + " [--info K1,K2,..] [--format K1,K2,..] [--samples S1,S2,..] [--threads N] [--batch-size N] [--max-in-flight N]"
+            		+ " [--output-format tsv|bgzf|columnar] [--compress-threads N] [--row-group-size N] [--io-threads N] [--read-ahead N] [--io-mode channel|mapped] [--metrics file] vcfFile outFile");
+            exitWithUsage();
         }
+        runTool(VCFToTab.class, version, args, options, () -> convert(new File(positional.get(0)), new File(positional.get(1)), options));
+	}
 
-        // Get info fields
-        for (VCFInfoHeaderLine vcfInfo : vcfHeader.getInfoHeaderLines()) {
-        	vcfInfoById.put(vcfInfo.getID(), vcfInfo);
-        	keyList.add(vcfInfo.getID());
-        }
+	private static void convert(File vcfFile, File outputFile, Map<String, String> options) throws IOException {
+        final int threads = Integer.parseInt(options.getOrDefault("--threads", "1"));
+        final int batchSize = Math.max(1, Integer.parseInt(options.getOrDefault("--batch-size", "1000")));
+        final int maxInFlight = Math.max(1, Integer.parseInt(options.getOrDefault("--max-in-flight", String.valueOf(threads * 4))));
+        // the format follows the extension of the output file unless it is given
+        final String outputFormat = options.getOrDefault("--output-format", TabOutput.formatOf(outputFile));
+        final int compressThreads = Math.max(1, Integer.parseInt(options.getOrDefault("--compress-threads",
+        		String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        // columnar row groups are also cut by bytes, so wide cohorts do not hold a large group of rows
+        final int rowGroupSize = Math.max(1, Integer.parseInt(options.getOrDefault("--row-group-size", "4096")));
+        final ToolMetrics metrics = ToolMetrics.current();
+        metrics.count(ToolMetrics.BYTES_READ, vcfFile.length());
 
-        // These are the samples that appear in the vcf file
-        ArrayList<String> sampleNames = new ArrayList<String>(vcfHeader.getGenotypeSamples());
-
-        // Print out header fields, followed by info fields, folled by samples.
-    	outWriter.write("CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER");
-    	for (String key: keyList) {
-    		outWriter.write("\t" + key);
-    	}
-    	// Now print out the genotype format fields for each sample
-    	for (String sample : sampleNames) {
-    		for (String perSampleKey : perSampleKeyList) {
-    			outWriter.write("\t" + sample + "-" + perSampleKey);
-    		}
-    	}
-    	outWriter.write("\n");
-
-    	// print out the variants with the info field values in the same order
-        for (final VariantContext vc : vcfReader.iterator()) {
-        	String altAlleles = StringUtil.join(",", vc.getAlternateAlleles());
-        	String filter = StringUtil.join(",", vc.getFilters());
-        	
-        	outWriter.write(vc.getContig() + "\t" + vc.getStart() + "\t" + vc.getID() + "\t" + vc.getReference().getDisplayString() + "\t" + 
-        			altAlleles + "\t" + vc.getPhredScaledQual() + "\t" + filter);
-        	
-        	// Print out the info fields
-        	for (String key : keyList) {
-        		outWriter.write("\t");
-        		if (vc.hasAttribute(key)) {
-        			List<Object> attrs = vc.getAttributeAsList(key);
-        			outWriter.write(StringUtil.join(",", attrs));
-        		}
-    		}
-        	
-        	// Print out the genotypes
-        	Iterable<Genotype> genotypes = vc.getGenotypesOrderedBy(sampleNames);
-        	for (Genotype genotype : genotypes) {
-        		for (String perSampleKey : perSampleKeyList) {
-        			outWriter.write("\t");
-        			if (genotype.hasAnyAttribute(perSampleKey)) {
-        				if (perSampleKey.equals("GT")) {
-        					outWriter.write(genotype.getGenotypeString());
-        				} else if (perSampleKey.equals("PL")) {
-        					outWriter.write(genotype.getLikelihoodsString());
-        				} else {
-        					outWriter.write("" + genotype.getAnyAttribute(perSampleKey));
+        // open VCF file and read its header lines; bgzipped blocks are inflated ahead of the reader
+        try (BufferedReader vcfReader = ReadAhead.current().openReader(vcfFile)) {
+        	final List<String> headerLines = new ArrayList<String>();
+        	String line;
+        	while ((line = vcfReader.readLine()) != null && line.startsWith("#")) {
+        		headerLines.add(line);
+        	}
+        	final VCFHeader vcfHeader = (VCFHeader) new VCFCodec().readActualHeader(lineIterator(headerLines));
+
+        	// only the requested INFO keys, FORMAT keys and samples are kept in the lines that are decoded
+        	final VcfProjection projection = new VcfProjection(vcfHeader, VcfProjection.parseList(options.get("--info")),
+        			VcfProjection.parseList(options.get("--format")), VcfProjection.parseList(options.get("--samples")));
+        	headerLines.set(headerLines.size() - 1, projection.projectHeaderLine(headerLines.get(headerLines.size() - 1)));
+        	final VCFCodec vcfCodec = newCodec(headerLines);
+
+        	log.info("Writing " + outputFormat + " output");
+        	final TabOutput output = TabOutput.open(outputFile, outputFormat, compressThreads, rowGroupSize);
+        	try {
+        		if (threads > 1) {
+        			convertInParallel(vcfReader, line, headerLines, projection, output, threads, batchSize, maxInFlight);
+        		} else {
+        			// open output file; rows are formatted straight into its buffer
+        			final TabRowWriter outWriter = new TabRowWriter(output, projection.getInfoKeys(), projection.getFormatKeys(), projection.getSamples());
+        			outWriter.writeHeader();
+
+        			// print out the variants with the info field values in the same order
+        			final Batch batch = new Batch();
+        			for (; line != null; line = vcfReader.readLine()) {
+        				if (line.isEmpty()) {
+        					continue;
         				}
+        				batch.convert(line, projection, vcfCodec, outWriter);
         			}
+        			batch.report(metrics);
+        			outWriter.close();
+        		}
+        	} catch (Throwable e) {
+        		// a failed run leaves the output unfinished rather than ending it as if it were complete
+        		try {
+        			output.abort();
+        		} catch (IOException suppressed) {
+        			e.addSuppressed(suppressed);
         		}
+        		throw e;
         	}
-        	outWriter.write("\n");
         }
+	}
+
+	/* A pipeline of three stages: a reader thread cuts the lines into batches and hands each batch to
+	 * a pool of workers that decode and format it, and this thread writes the formatted batches in
+	 * the order they were read. At most maxInFlight batches are read ahead of the writer, which keeps
+	 * the memory fixed however large the file is. When a stage fails the reader is told to stop, and
+	 * it never waits on a full queue that the writer has stopped taking from.
+	 */
+	private static void convertInParallel(BufferedReader vcfReader, String firstLine, List<String> headerLines, VcfProjection projection,
+			TabOutput output, int threads, int batchSize, int maxInFlight) throws IOException {
+		log.info("Converting batches of " + batchSize + " lines with " + threads + " threads, at most " + maxInFlight + " at a time");
+		final ToolMetrics metrics = ToolMetrics.current();
+		final BlockingQueue<Worker> workers = new ArrayBlockingQueue<Worker>(threads);
+		for (int i = 0; i < threads; i++) {
+			workers.add(new Worker(newCodec(headerLines), new TabRowWriter(projection.getInfoKeys(), projection.getFormatKeys(), projection.getSamples())));
+		}
+		final BlockingQueue<Future<byte[]>> batches = new ArrayBlockingQueue<Future<byte[]>>(maxInFlight);
+		final Future<byte[]> endOfInput = CompletableFuture.completedFuture(null);
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		final List<Future<?>> readers = new ArrayList<Future<?>>();
+		try {
+			final Future<?> reading = reader.submit(() -> {
+				try {
+					String line = firstLine;
+					while (line != null && !stopped.get()) {
+						final List<String> batch = new ArrayList<String>(batchSize);
+						for (; line != null && batch.size() < batchSize; line = vcfReader.readLine()) {
+							if (!line.isEmpty()) {
+								batch.add(line);
+							}
+						}
+						final Future<byte[]> converting = executor.submit(() -> {
+							final Worker worker = workers.take();
+							try {
+								final Batch times = new Batch();
+								for (String record : batch) {
+									times.convert(record, projection, worker.codec, worker.writer);
+								}
+								times.report(metrics);
+								return worker.writer.takeRows();
+							} finally {
+								workers.put(worker);
+							}
+						});
+						if (!hand(batches, converting, stopped)) {
+							converting.cancel(false);
+						}
+					}
+				} finally {
+					// the writer stops at the end of the batches, whether or not they were all read
+					hand(batches, endOfInput, stopped);
+				}
+				return null;
+			});
+			readers.add(reading);
+
+			final TabRowWriter header = new TabRowWriter(projection.getInfoKeys(), projection.getFormatKeys(), projection.getSamples());
+			header.writeHeader();
+			write(output, header.takeRows());
+			for (Future<byte[]> batch = batches.take(); batch != endOfInput; batch = batches.take()) {
+				write(output, batch.get());
+			}
+			reading.get();
+			output.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while converting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			// the reader finishes first, so that no batch is submitted once the workers are stopped
+			stopped.set(true);
+			stopWorkers(reader, readers);
+			stopWorkers(executor, batches);
+		}
+	}
 
-   		outWriter.close();
-    	vcfReader.close();
-        final long end = System.currentTimeMillis();
-        log.info(String.format("Done. Elapsed time %.3f seconds", (end - start) / 1000.0));                
+	/* Put an item on a queue, unless the pipeline is stopped while the queue is full.
+	 * @return whether the item was put
+	 */
+	private static <T> boolean hand(BlockingQueue<T> queue, T item, AtomicBoolean stopped) throws InterruptedException {
+		while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+			if (stopped.get()) {
+				return false;
+			}
+		}
+		return true;
 	}
 
+	/* The decode and format times of the records of a batch, which are too short to time one by one
+	 * as stages of their own.
+	 */
+	private static class Batch {
+		long records = 0;
+		long decode = 0;
+		long format = 0;
+
+		void convert(String line, VcfProjection projection, VCFCodec codec, TabRowWriter writer) throws IOException {
+			final long start = System.nanoTime();
+			final VariantContext vc = codec.decode(projection.project(line));
+			final long decoded = System.nanoTime();
+			writer.writeRow(vc);
+			decode += decoded - start;
+			format += System.nanoTime() - decoded;
+			records++;
+		}
+
+		void report(ToolMetrics metrics) {
+			metrics.addTime(ToolMetrics.DECODE, decode);
+			metrics.addTime(ToolMetrics.FORMAT, format);
+			metrics.count(ToolMetrics.RECORDS, records);
+		}
+	}
+
+	/* A codec and a row writer for one batch at a time; neither can be shared between threads.
+	 */
+	private static class Worker {
+		final VCFCodec codec;
+		final TabRowWriter writer;
+
+		Worker(VCFCodec codec, TabRowWriter writer) {
+			this.codec = codec;
+			this.writer = writer;
+		}
+	}
+
+	@SuppressWarnings("try")
+	private static void write(TabOutput out, byte[] bytes) throws IOException {
+		try (ToolMetrics.Timer timer = ToolMetrics.current().time(ToolMetrics.WRITE)) {
+			out.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static VCFCodec newCodec(List<String> headerLines) {
+		final VCFCodec codec = new VCFCodec();
+		codec.readActualHeader(lineIterator(headerLines));
+		return codec;
+	}
+
+	private static LineIterator lineIterator(List<String> lines) {
+		return new LineIteratorImpl(new SynchronousLineReader(new StringReader(String.join("\n", lines))));
+	}
 }
@@ -0,0 +1,141 @@
+package tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import htsjdk.tribble.FeatureReader;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContext;
+
+/*
+ * Decides whether a variant is already known, against one of three sources of known variants:
+ * a compiled store, an indexed VCF queried per variant, or a merge-join cursor over a sorted VCF.
+ *
+ * What counts as known depends on the mode:
+ *   overlap  - any known record overlaps the variant (the original behaviour)
+ *   position - a known record starts at the same position
+ *   allele   - every alternate allele of the variant is a known allele once both are normalized
+ *              (see KnownSitesStore.alleleKey); variants without plain alternate alleles, such as
+ *              symbolic or spanning deletions, fall back to position
+ */
+public class VariantMatcher {
+	public enum Mode {
+		OVERLAP, POSITION, ALLELE;
+
+		public static Mode parse(String value) {
+			try {
+				return valueOf(value.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("--match must be overlap, position or allele, not " + value);
+			}
+		}
+	}
+
+	private final Mode mode;
+	private final KnownSitesStore store;
+	private final FeatureReader<VariantContext> reader;
+	private final KnownVariantCursor cursor;
+	private final String querySource;
+	private final ToolMetrics metrics = ToolMetrics.current();
+
+	private VariantMatcher(Mode mode, KnownSitesStore store, FeatureReader<VariantContext> reader, KnownVariantCursor cursor, String querySource) {
+		this.mode = mode;
+		this.store = store;
+		this.reader = reader;
+		this.cursor = cursor;
+		this.querySource = querySource;
+	}
+
+	public VariantMatcher(Mode mode, KnownSitesStore store) {
+		this(mode, store, null, null, null);
+	}
+
+	/**
+	 * Match by querying an indexed VCF of known variants for every variant.
+	 */
+	public VariantMatcher(Mode mode, FeatureReader<VariantContext> reader) {
+		this(mode, null, reader, null, null);
+	}
+
+	/**
+	 * Match against a merge-join cursor; the variants must then come in coordinate order.
+	 */
+	public VariantMatcher(Mode mode, KnownVariantCursor cursor, String querySource) {
+		this(mode, null, null, cursor, querySource);
+	}
+
+	public boolean isKnown(VariantContext vc) throws IOException {
+		final List<String> alts = plainAlternates(vc);
+		final Mode effective = mode == Mode.ALLELE && alts.isEmpty() ? Mode.POSITION : mode;
+
+		if (store != null) {
+			switch (effective) {
+			case OVERLAP:
+				return store.overlaps(vc.getContig(), vc.getStart(), vc.getEnd());
+			case POSITION:
+				return store.hasStart(vc.getContig(), vc.getStart());
+			default:
+				final String ref = vc.getReference().getBaseString();
+				for (String alt : alts) {
+					if (!store.hasAllele(vc.getContig(), vc.getStart(), ref, alt)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+
+		final List<VariantContext> known;
+		if (cursor != null) {
+			known = cursor.overlapping(vc, querySource);
+		} else {
+			known = new ArrayList<VariantContext>();
+			metrics.count(ToolMetrics.SEEKS, 1);
+			Iterator<VariantContext> iter = reader.query(vc.getContig(), vc.getStart(), vc.getEnd());
+			while (iter.hasNext()) {
+				known.add(iter.next());
+			}
+		}
+		switch (effective) {
+		case OVERLAP:
+			return !known.isEmpty();
+		case POSITION:
+			for (VariantContext k : known) {
+				if (k.getStart() == vc.getStart()) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			// a known allele normalizes to a position inside both records, so it always overlaps the variant
+			final Set<Long> knownKeys = new HashSet<Long>();
+			for (VariantContext k : known) {
+				for (String alt : plainAlternates(k)) {
+					knownKeys.add(KnownSitesStore.alleleKey(k.getStart(), k.getReference().getBaseString(), alt));
+				}
+			}
+			final String ref = vc.getReference().getBaseString();
+			for (String alt : alts) {
+				if (!knownKeys.contains(KnownSitesStore.alleleKey(vc.getStart(), ref, alt))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static List<String> plainAlternates(VariantContext vc) {
+		final List<String> alts = new ArrayList<String>();
+		for (Allele alt : vc.getAlternateAlleles()) {
+			if (!alt.isSymbolic() && !alt.isNoCall() && !alt.equals(Allele.SPAN_DEL)) {
+				alts.add(alt.getBaseString());
+			}
+		}
+		return alts;
+	}
+}
@@ -0,0 +1,270 @@
+package tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+
+/*
+ * A projection of VCF lines onto some INFO keys, FORMAT keys and samples, applied to the text of
+ * each line before it is decoded: the other INFO entries, FORMAT keys and sample columns are cut
+ * out of the line, so the codec never parses them. The projected lines are decoded against the
+ * projected header, which lists only the kept samples.
+ */
+public class VcfProjection {
+	private final List<String> infoKeys;
+	private final List<String> formatKeys;
+	private final List<String> samples;
+	// null when that part of the line is kept whole
+	private final String[] keptInfo;
+	private final String[] keptFormat;
+	private final int[] sampleColumns;
+
+	/**
+	 * @param info the INFO keys to keep, or null for all of them
+	 * @param format the FORMAT keys to keep, or null for all of them
+	 * @param samples the samples to keep, in the order they are wanted, or null for all of them
+	 */
+	public VcfProjection(VCFHeader header, List<String> info, List<String> format, List<String> samples) {
+		final List<String> headerInfo = new ArrayList<String>();
+		for (VCFInfoHeaderLine line : header.getInfoHeaderLines()) {
+			headerInfo.add(line.getID());
+		}
+		final List<String> headerFormat = new ArrayList<String>();
+		for (VCFFormatHeaderLine line : header.getFormatHeaderLines()) {
+			headerFormat.add(line.getID());
+		}
+		final List<String> headerSamples = new ArrayList<String>(header.getGenotypeSamples());
+
+		this.infoKeys = check("INFO key", info, headerInfo);
+		this.formatKeys = check("FORMAT key", format, headerFormat);
+		this.samples = check("sample", samples, headerSamples);
+		this.keptInfo = info != null ? info.toArray(new String[0]) : null;
+		this.keptFormat = format != null ? format.toArray(new String[0]) : null;
+		if (samples != null) {
+			sampleColumns = new int[samples.size()];
+			for (int i = 0; i < sampleColumns.length; i++) {
+				sampleColumns[i] = 9 + headerSamples.indexOf(samples.get(i));
+			}
+		} else {
+			sampleColumns = null;
+		}
+	}
+
+	private static List<String> check(String what, List<String> wanted, List<String> available) {
+		if (wanted == null) {
+			return available;
+		}
+		for (String key : wanted) {
+			if (!available.contains(key)) {
+				throw new IllegalArgumentException("Unknown " + what + " " + key + "; the VCF has " + available);
+			}
+		}
+		return wanted;
+	}
+
+	/**
+	 * @return a comma separated list as a list, or null for a null value
+	 */
+	public static List<String> parseList(String value) {
+		return value == null ? null : Arrays.asList(value.split(","));
+	}
+
+	public List<String> getInfoKeys() {
+		return infoKeys;
+	}
+
+	public List<String> getFormatKeys() {
+		return formatKeys;
+	}
+
+	public List<String> getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return true if lines are projected at all
+	 */
+	public boolean isProjecting() {
+		return keptInfo != null || keptFormat != null || sampleColumns != null;
+	}
+
+	/**
+	 * @return the #CHROM header line with only the kept samples
+	 */
+	public String projectHeaderLine(String chromLine) {
+		if (sampleColumns == null) {
+			return chromLine;
+		}
+		final String[] columns = chromLine.split("\t", -1);
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < Math.min(9, columns.length); i++) {
+			sb.append(i > 0 ? "\t" : "").append(columns[i]);
+		}
+		for (int column : sampleColumns) {
+			sb.append('\t').append(columns[column]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the line with only the kept INFO entries, FORMAT keys and samples
+	 */
+	public String project(String line) {
+		if (!isProjecting()) {
+			return line;
+		}
+		// the columns are found by their tabs and only the kept parts are copied out of the line
+		final StringBuilder sb = new StringBuilder(line.length());
+		int infoStart = 0;
+		for (int i = 0; i < 7; i++) {
+			infoStart = line.indexOf('\t', infoStart) + 1;
+		}
+		final int infoEnd = columnEnd(line, infoStart);
+		sb.append(line, 0, infoStart);
+		if (keptInfo != null) {
+			appendInfo(line, infoStart, infoEnd, sb);
+		} else {
+			sb.append(line, infoStart, infoEnd);
+		}
+		if (infoEnd == line.length()) {
+			return sb.toString();
+		}
+
+		// the positions of the kept FORMAT keys in this line
+		final int formatEnd = columnEnd(line, infoEnd + 1);
+		int[] keep = null;
+		if (keptFormat != null) {
+			int kept = 0;
+			keep = new int[8];
+			int position = 0;
+			for (int start = infoEnd + 1; start <= formatEnd; position++) {
+				final int end = fieldEnd(line, start, formatEnd, ':');
+				if (isKept(keptFormat, line, start, end)) {
+					if (kept == keep.length) {
+						keep = Arrays.copyOf(keep, kept * 2);
+					}
+					keep[kept++] = position;
+				}
+				start = end + 1;
+			}
+			keep = Arrays.copyOf(keep, kept);
+			sb.append('\t');
+			appendFields(line, infoEnd + 1, formatEnd, keep, sb);
+		} else {
+			sb.append(line, infoEnd, formatEnd);
+		}
+
+		if (sampleColumns == null) {
+			for (int start = formatEnd + 1; start <= line.length(); ) {
+				final int end = columnEnd(line, start);
+				appendSample(line, start, end, keep, sb);
+				start = end + 1;
+			}
+		} else {
+			// the sample columns of the line, as the kept samples may come in any order
+			int[] starts = new int[16];
+			int columns = 0;
+			for (int start = formatEnd + 1; start <= line.length(); start = columnEnd(line, start) + 1) {
+				if (columns == starts.length) {
+					starts = Arrays.copyOf(starts, columns * 2);
+				}
+				starts[columns++] = start;
+			}
+			for (int column : sampleColumns) {
+				if (column - 9 >= columns) {
+					throw new IllegalArgumentException("The line has " + columns + " samples, not " + (column - 8) + ": " + line);
+				}
+				final int start = starts[column - 9];
+				appendSample(line, start, columnEnd(line, start), keep, sb);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int columnEnd(String line, int start) {
+		final int tab = line.indexOf('\t', start);
+		return tab < 0 ? line.length() : tab;
+	}
+
+	/* The end of the field that starts at start, within a column that ends at end.
+	 */
+	private static int fieldEnd(String line, int start, int end, char separator) {
+		while (start < end && line.charAt(start) != separator) {
+			start++;
+		}
+		return start;
+	}
+
+	private static boolean isKept(String[] keys, String line, int start, int end) {
+		for (String key : keys) {
+			if (key.length() == end - start && line.regionMatches(start, key, 0, key.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void appendSample(String line, int start, int end, int[] keep, StringBuilder sb) {
+		sb.append('\t');
+		if (keep != null) {
+			appendFields(line, start, end, keep, sb);
+		} else {
+			sb.append(line, start, end);
+		}
+	}
+
+	private void appendInfo(String line, int start, int end, StringBuilder sb) {
+		if (end - start == 1 && line.charAt(start) == '.') {
+			sb.append('.');
+			return;
+		}
+		final int from = sb.length();
+		while (start <= end) {
+			final int entryEnd = fieldEnd(line, start, end, ';');
+			final int keyEnd = fieldEnd(line, start, entryEnd, '=');
+			if (isKept(keptInfo, line, start, keyEnd)) {
+				if (sb.length() > from) {
+					sb.append(';');
+				}
+				sb.append(line, start, entryEnd);
+			}
+			start = entryEnd + 1;
+		}
+		if (sb.length() == from) {
+			sb.append('.');
+		}
+	}
+
+	/* The ':' separated fields of line[start, end) at the given positions, in ascending order;
+	 * trailing fields may be missing from a sample, and trailing empty fields count as missing.
+	 */
+	private static void appendFields(String line, int start, int end, int[] positions, StringBuilder sb) {
+		int trimmed = end;
+		while (trimmed > start && line.charAt(trimmed - 1) == ':') {
+			trimmed--;
+		}
+		if (trimmed == start && end > start) {
+			// nothing but separators
+			sb.append('.');
+			return;
+		}
+		end = trimmed;
+		int written = 0;
+		int position = 0;
+		for (int p = 0; p < positions.length && start <= end; position++) {
+			final int fieldEnd = fieldEnd(line, start, end, ':');
+			if (position == positions[p]) {
+				sb.append(written++ > 0 ? ":" : "").append(line, start, fieldEnd);
+				p++;
+			}
+			start = fieldEnd + 1;
+		}
+		if (written == 0) {
+			sb.append('.');
+		}
+	}
+}